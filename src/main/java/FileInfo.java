@@ -107,9 +107,12 @@ public class FileInfo implements Cloneable {
     public boolean whiteIsZero;
     public boolean intelByteOrder;
     public int compression;
-    public int[] stripOffsets; 
+    public long[] stripOffsets; 
     public int[] stripLengths;
     public int rowsPerStrip;
+    // Tile size of tiled images, whose stripOffsets and stripLengths then hold the tiles row by row; 0 otherwise.
+    public int tileWidth;
+    public int tileHeight;
     public int lutSize;
     public byte[] reds;
     public byte[] greens;
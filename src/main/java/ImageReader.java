@@ -4,6 +4,19 @@ import java.io.*;
 import java.net.*;
 import java.awt.image.BufferedImage;
 import javax.imageio.ImageIO;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.zip.Inflater;
 import java.util.zip.DataFormatException;
 
@@ -16,6 +29,18 @@ public class ImageReader {
 	private static final int CLEAR_CODE = 256;
 	private static final int EOI_CODE = 257;
 
+	/** Strips and tiles are decompressed on the pool the whole project shares, GridTraversal.pool, so that
+		loading files in parallel does not multiply the threads. */
+	private static final ForkJoinPool stripPool = GridTraversal$.MODULE$.pool();
+
+	/** One Inflater per thread, reset after each strip instead of being created for it. */
+	private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater();
+		}
+	};
+
     private FileInfo fi;
     private int width, height;
     public long skipCount;
@@ -37,7 +62,7 @@ public class ImageReader {
 	    bytesPerPixel = fi.getBytesPerPixel();
 	}
 	
-	void eofError() {
+	synchronized void eofError() {
 		eofErrorCount++;
 	}
 	
@@ -66,12 +91,11 @@ public class ImageReader {
 		skip(in);
 		byte[] pixels = new byte[nPixels];
 		int current = 0;
-		byte last = 0;
 		for (int i=0; i<fi.stripOffsets.length; i++) {
 			if (in instanceof RandomAccessStream)
 				((RandomAccessStream)in).seek(fi.stripOffsets[i]);
 			else if (i > 0) {
-				long skip = (fi.stripOffsets[i]&0xffffffffL) - (fi.stripOffsets[i-1]&0xffffffffL) - fi.stripLengths[i-1];
+				long skip = fi.stripOffsets[i] - fi.stripOffsets[i-1] - fi.stripLengths[i-1];
 				if (skip > 0L) in.skip(skip);
 			}
 			byte[] byteArray = new byte[fi.stripLengths[i]];
@@ -85,12 +109,6 @@ public class ImageReader {
 			byteArray = uncompress(byteArray);
 			int length = byteArray.length;
 			length = length - (length%fi.width);
-			if (fi.compression==FileInfo.LZW_WITH_DIFFERENCING) {
-				for (int b=0; b<length; b++) {
-					byteArray[b] += last;
-					last = b % fi.width == fi.width - 1 ? 0 : byteArray[b];
-				}
-			}
 			if (current+length>pixels.length) length = pixels.length-current;
 			System.arraycopy(byteArray, 0, pixels, current, length);
 			current += length;
@@ -106,10 +124,11 @@ public class ImageReader {
 			return readCompressed16bitImage(in);
 		int pixelsRead;
 		byte[] buffer = new byte[bufferSize];
+		ByteBuffer view = ByteBuffer.wrap(buffer).order(byteOrder());
 		short[] pixels = new short[nPixels];
 		long totalRead = 0L;
 		int base = 0;
-		int count, value;
+		int count;
 		int bufferCount;
 		
 		while (totalRead<byteCount) {
@@ -129,23 +148,13 @@ public class ImageReader {
 			}
 			totalRead += bufferSize;
 			pixelsRead = bufferSize/bytesPerPixel;
-			if (fi.intelByteOrder) {
-				if (fi.fileType==FileInfo.GRAY16_SIGNED)
-					for (int i=base,j=0; i<(base+pixelsRead); i++,j+=2)
-						pixels[i] = (short)((((buffer[j+1]&0xff)<<8) | (buffer[j]&0xff))+32768);
-				else
-					for (int i=base,j=0; i<(base+pixelsRead); i++,j+=2)
-						pixels[i] = (short)(((buffer[j+1]&0xff)<<8) | (buffer[j]&0xff));
-			} else {
-				if (fi.fileType==FileInfo.GRAY16_SIGNED)
-					for (int i=base,j=0; i<(base+pixelsRead); i++,j+=2)
-						pixels[i] = (short)((((buffer[j]&0xff)<<8) | (buffer[j+1]&0xff))+32768);
-				else
-					for (int i=base,j=0; i<(base+pixelsRead); i++,j+=2)
-						pixels[i] = (short)(((buffer[j]&0xff)<<8) | (buffer[j+1]&0xff));
-			}
+			if (base+pixelsRead>nPixels) pixelsRead = nPixels-base;
+			view.clear();
+			view.asShortBuffer().get(pixels, base, pixelsRead);
 			base += pixelsRead;
 		}
+		if (fi.fileType==FileInfo.GRAY16_SIGNED)
+			toUnsigned(pixels);
 		skipCount = fi.gapBetweenImages;
 		return pixels;
 	}
@@ -154,12 +163,11 @@ public class ImageReader {
 		skip(in);
 		short[] pixels = new short[nPixels];
 		int base = 0;
-		short last = 0;
 		for (int k=0; k<fi.stripOffsets.length; k++) {
 			if (in instanceof RandomAccessStream)
 				((RandomAccessStream)in).seek(fi.stripOffsets[k]);
 			else if (k > 0) {
-				long skip = (fi.stripOffsets[k]&0xffffffffL) - (fi.stripOffsets[k-1]&0xffffffffL) - fi.stripLengths[k-1];
+				long skip = fi.stripOffsets[k] - fi.stripOffsets[k-1] - fi.stripLengths[k-1];
 				if (skip > 0L) in.skip(skip);
 			}
 			byte[] byteArray = new byte[fi.stripLengths[k]];
@@ -182,12 +190,6 @@ public class ImageReader {
 				for (int i=base,j=0; i<pmax; i++,j+=2)
 					pixels[i] = (short)(((byteArray[j]&0xff)<<8) | (byteArray[j+1]&0xff));
 			}
-			if (fi.compression==FileInfo.LZW_WITH_DIFFERENCING) {
-				for (int b=base; b<pmax; b++) {
-					pixels[b] += last;
-					last = b % fi.width == fi.width - 1 ? 0 : pixels[b];
-				}
-			}
 			base += pixelsRead;
 		}
 		if (fi.fileType==FileInfo.GRAY16_SIGNED) {
@@ -205,12 +207,12 @@ public class ImageReader {
 			return readCompressed32bitImage(in);
 		int pixelsRead;
 		byte[] buffer = new byte[bufferSize];
+		ByteBuffer view = ByteBuffer.wrap(buffer).order(byteOrder());
 		float[] pixels = new float[nPixels];
 		long totalRead = 0L;
 		int base = 0;
-		int count, value;
+		int count;
 		int bufferCount;
-		int tmp;
 		
 		while (totalRead<byteCount) {
 			if ((totalRead+bufferSize)>byteCount)
@@ -229,31 +231,12 @@ public class ImageReader {
 			}
 			totalRead += bufferSize;
 			pixelsRead = bufferSize/bytesPerPixel;
-			int pmax = base+pixelsRead;
-			if (pmax>nPixels) pmax = nPixels;
-			int j = 0;
-			if (fi.intelByteOrder)
-				for (int i=base; i<pmax; i++) {
-					tmp = (int)(((buffer[j+3]&0xff)<<24) | ((buffer[j+2]&0xff)<<16) | ((buffer[j+1]&0xff)<<8) | (buffer[j]&0xff));
-					if (fi.fileType==FileInfo.GRAY32_FLOAT)
-						pixels[i] = Float.intBitsToFloat(tmp);
-					else if (fi.fileType==FileInfo.GRAY32_UNSIGNED)
-						pixels[i] = (float)(tmp&0xffffffffL);
-					else
-						pixels[i] = tmp;
-					j += 4;
-				}
+			if (base+pixelsRead>nPixels) pixelsRead = nPixels-base;
+			view.clear();
+			if (fi.fileType==FileInfo.GRAY32_FLOAT)
+				view.asFloatBuffer().get(pixels, base, pixelsRead);
 			else
-				for (int i=base; i<pmax; i++) {
-					tmp = (int)(((buffer[j]&0xff)<<24) | ((buffer[j+1]&0xff)<<16) | ((buffer[j+2]&0xff)<<8) | (buffer[j+3]&0xff));
-					if (fi.fileType==FileInfo.GRAY32_FLOAT)
-						pixels[i] = Float.intBitsToFloat(tmp);
-					else if (fi.fileType==FileInfo.GRAY32_UNSIGNED)
-						pixels[i] = (float)(tmp&0xffffffffL);
-					else
-						pixels[i] = tmp;
-					j += 4;
-				}
+				intsToFloats(view.asIntBuffer(), pixels, base, pixelsRead);
 			base += pixelsRead;
 		}
 		skipCount = fi.gapBetweenImages;
@@ -264,13 +247,12 @@ public class ImageReader {
 		skip(in);
 		float[] pixels = new float[nPixels];
 		int base = 0;
-		float last = 0;
 		for (int k=0; k<fi.stripOffsets.length; k++) {
 			//IJ.log("seek: "+fi.stripOffsets[k]+" "+(in instanceof RandomAccessStream));
 			if (in instanceof RandomAccessStream)
 				((RandomAccessStream)in).seek(fi.stripOffsets[k]);
 			else if (k > 0) {
-				long skip = (fi.stripOffsets[k]&0xffffffffL) - (fi.stripOffsets[k-1]&0xffffffffL) - fi.stripLengths[k-1];
+				long skip = fi.stripOffsets[k] - fi.stripOffsets[k-1] - fi.stripLengths[k-1];
 				if (skip > 0L) in.skip(skip);
 			}
 			byte[] byteArray = new byte[fi.stripLengths[k]];
@@ -298,12 +280,6 @@ public class ImageReader {
 					pixels[i] = Float.intBitsToFloat(tmp);
 				}
 			}
-			if (fi.compression==FileInfo.LZW_WITH_DIFFERENCING) {
-				for (int b=base; b<pmax; b++) {
-					pixels[b] += last;
-					last = b % fi.width == fi.width - 1 ? 0 : pixels[b];
-				}
-			}
 			base += pixelsRead;
 		}
 		skipCount = fi.gapBetweenImages;
@@ -314,13 +290,12 @@ public class ImageReader {
 		skip(in);
 		int pixelsRead;
 		byte[] buffer = new byte[bufferSize];
+		ByteBuffer view = ByteBuffer.wrap(buffer).order(byteOrder());
 		float[] pixels = new float[nPixels];
 		long totalRead = 0L;
 		int base = 0;
-		int count, value;
+		int count;
 		int bufferCount;
-		long tmp;
-		long b1, b2, b3, b4, b5, b6, b7, b8;
 		
 		while (totalRead<byteCount) {
 			if ((totalRead+bufferSize)>byteCount)
@@ -339,23 +314,99 @@ public class ImageReader {
 			}
 			totalRead += bufferSize;
 			pixelsRead = bufferSize/bytesPerPixel;
-			int j = 0;
-			for (int i=base; i < (base+pixelsRead); i++) {
-				b1 = buffer[j+7]&0xff;  b2 = buffer[j+6]&0xff;  b3 = buffer[j+5]&0xff;  b4 = buffer[j+4]&0xff; 
-				b5 = buffer[j+3]&0xff;  b6 = buffer[j+2]&0xff;  b7 = buffer[j+1]&0xff;  b8 = buffer[j]&0xff; 
-				if (fi.intelByteOrder)
-					tmp = (long)((b1<<56)|(b2<<48)|(b3<<40)|(b4<<32)|(b5<<24)|(b6<<16)|(b7<<8)|b8);
-				else
-					tmp = (long)((b8<<56)|(b7<<48)|(b6<<40)|(b5<<32)|(b4<<24)|(b3<<16)|(b2<<8)|b1);
-				pixels[i] = (float)Double.longBitsToDouble(tmp);
-				j += 8;
-			}
+			if (base+pixelsRead>nPixels) pixelsRead = nPixels-base;
+			view.clear();
+			doublesToFloats(view.asDoubleBuffer(), pixels, base, pixelsRead);
 			base += pixelsRead;
 		}
 		skipCount = fi.gapBetweenImages;
 		return pixels;
 	}
 
+	/** Reads an uncompressed 8-bit image straight out of <code>buffer</code>, which holds the file, or the part
+		of it that the offsets of the FileInfo are relative to. */
+	public byte[] read8bitImage(ByteBuffer buffer) {
+		initCounts();
+		byte[] pixels = new byte[nPixels];
+		ByteBuffer bytes = frameBytes(buffer);
+		bytes.get(pixels, 0, Math.min(nPixels, bytes.remaining()));
+		return pixels;
+	}
+
+	/** Reads an uncompressed 16-bit image straight out of <code>buffer</code>, as a short view in the file's
+		byte order. Signed pixels are converted to unsigned by adding 32768. */
+	public short[] read16bitImage(ByteBuffer buffer) {
+		initCounts();
+		short[] pixels = new short[nPixels];
+		ShortBuffer view = frameBytes(buffer).asShortBuffer();
+		view.get(pixels, 0, Math.min(nPixels, view.remaining()));
+		if (fi.fileType==FileInfo.GRAY16_SIGNED)
+			toUnsigned(pixels);
+		return pixels;
+	}
+
+	/** Reads an uncompressed 32-bit image straight out of <code>buffer</code>, as a float or int view in the
+		file's byte order. */
+	public float[] read32bitImage(ByteBuffer buffer) {
+		initCounts();
+		float[] pixels = new float[nPixels];
+		ByteBuffer bytes = frameBytes(buffer);
+		int n = Math.min(nPixels, bytes.remaining()/4);
+		if (fi.fileType==FileInfo.GRAY32_FLOAT)
+			bytes.asFloatBuffer().get(pixels, 0, n);
+		else
+			intsToFloats(bytes.asIntBuffer(), pixels, 0, n);
+		return pixels;
+	}
+
+	/** Reads an uncompressed 64-bit float image straight out of <code>buffer</code>, as a double view in the
+		file's byte order. */
+	public float[] read64bitImage(ByteBuffer buffer) {
+		initCounts();
+		float[] pixels = new float[nPixels];
+		ByteBuffer bytes = frameBytes(buffer);
+		doublesToFloats(bytes.asDoubleBuffer(), pixels, 0, Math.min(nPixels, bytes.remaining()/8));
+		return pixels;
+	}
+
+	/** @return The bytes of the frame in <code>buffer</code>, from its offset on, in the file's byte order.
+		Frames cut short by the end of the buffer count as an EOF error. */
+	private ByteBuffer frameBytes(ByteBuffer buffer) {
+		ByteBuffer bytes = buffer.duplicate();
+		long start = Math.min(fi.getOffset(), (long)bytes.limit());
+		bytes.position((int)start);
+		if (bytes.remaining()<byteCount)
+			eofError();
+		else
+			bytes.limit((int)(start+byteCount));
+		return bytes.slice().order(byteOrder());
+	}
+
+	private ByteOrder byteOrder() {
+		return fi.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+	}
+
+	/** Converts signed 16-bit pixels to unsigned by adding 32768. */
+	private static void toUnsigned(short[] pixels) {
+		for (int i=0; i<pixels.length; i++)
+			pixels[i] = (short)(pixels[i]+32768);
+	}
+
+	/** Copies <code>n</code> signed or unsigned 32-bit integers from <code>ints</code> into <code>pixels</code>. */
+	private void intsToFloats(IntBuffer ints, float[] pixels, int base, int n) {
+		if (fi.fileType==FileInfo.GRAY32_UNSIGNED)
+			for (int i=0; i<n; i++)
+				pixels[base+i] = (float)(ints.get(i)&0xffffffffL);
+		else
+			for (int i=0; i<n; i++)
+				pixels[base+i] = ints.get(i);
+	}
+
+	private static void doublesToFloats(DoubleBuffer doubles, float[] pixels, int base, int n) {
+		for (int i=0; i<n; i++)
+			pixels[base+i] = (float)doubles.get(i);
+	}
+
 	public int[] readChunkyRGB(InputStream in) throws IOException {
 		skip(in);
 		if (fi.compression>FileInfo.COMPRESSION_NONE)
@@ -442,10 +493,9 @@ public class ImageReader {
 		int red=0, green=0, blue=0, alpha = 0;
 		boolean bgr = fi.fileType==FileInfo.BGR;
 		boolean cmyk = fi.fileType==FileInfo.CMYK;
-		boolean differencing = fi.compression == FileInfo.LZW_WITH_DIFFERENCING;
 		for (int i=0; i<fi.stripOffsets.length; i++) {
 			if (i > 0) {
-				long skip = (fi.stripOffsets[i]&0xffffffffL) - (fi.stripOffsets[i-1]&0xffffffffL) - fi.stripLengths[i-1];
+				long skip = fi.stripOffsets[i] - fi.stripOffsets[i-1] - fi.stripLengths[i-1];
 				if (skip > 0L) in.skip(skip);
 			}
 			byte[] byteArray = new byte[fi.stripLengths[i]];
@@ -457,12 +507,6 @@ public class ImageReader {
 				left -= r;
 			}
 			byteArray = uncompress(byteArray);
-			if (differencing) {
-				for (int b=0; b<byteArray.length; b++) {
-					if (b / bytesPerPixel % fi.width == 0) continue;
-					byteArray[b] += byteArray[b - bytesPerPixel];
-				}
-			}
 			int k = 0;
 			int pixelsRead = byteArray.length/bytesPerPixel;
 			pixelsRead = pixelsRead - (pixelsRead%fi.width);
@@ -568,7 +612,7 @@ public class ImageReader {
 		}
 		for (int i=0; i<fi.stripOffsets.length; i++) {
 			if (i>0) {
-				long skip = (fi.stripOffsets[i]&0xffffffffL) - (fi.stripOffsets[i-1]&0xffffffffL) - fi.stripLengths[i-1];
+				long skip = fi.stripOffsets[i] - fi.stripOffsets[i-1] - fi.stripLengths[i-1];
 				if (skip>0L) dis.skip(skip);
 			}
 			int len = fi.stripLengths[i];
@@ -611,7 +655,7 @@ public class ImageReader {
 		int min=65535, max=0;
 		for (int i=0; i<fi.stripOffsets.length; i++) {
 			if (i>0) {
-				long skip = (fi.stripOffsets[i]&0xffffffffL) - (fi.stripOffsets[i-1]&0xffffffffL) - fi.stripLengths[i-1];
+				long skip = fi.stripOffsets[i] - fi.stripOffsets[i-1] - fi.stripLengths[i-1];
 				if (skip>0L) dis.skip(skip);
 			}
 			int len = fi.stripLengths[i];
@@ -739,6 +783,10 @@ public class ImageReader {
 				bytesRead += count;
 			}
 		}
+		initCounts();
+	}
+
+	private void initCounts() {
 		byteCount = ((long)width)*height*bytesPerPixel;
 		if (fi.fileType==FileInfo.BITMAP) {
  			int scan=width/8, pad = width%8;
@@ -753,7 +801,263 @@ public class ImageReader {
 			bufferSize = (bufferSize/8192)*8192;
 	}
 		
-	public byte[] uncompress(byte[] input) {
+	/** Reads a compressed 8-bit image from <code>channel</code>, decompressing its strips in parallel.
+		Strips are fetched with positional reads, so the channel's position is neither used nor changed. */
+	public byte[] readCompressed8bitImage(FileChannel channel) throws IOException {
+		initCounts();
+		byte[] pixels = new byte[nPixels];
+		readStripsInParallel(channel, pixels);
+		return pixels;
+	}
+
+	/** Reads a compressed 16-bit image from <code>channel</code>, decompressing its strips in parallel.
+		Signed pixels are converted to unsigned by adding 32768. */
+	public short[] readCompressed16bitImage(FileChannel channel) throws IOException {
+		initCounts();
+		short[] pixels = new short[nPixels];
+		readStripsInParallel(channel, pixels);
+		if (fi.fileType==FileInfo.GRAY16_SIGNED) {
+			for (int i=0; i<nPixels; i++)
+				pixels[i] = (short)(pixels[i]+32768);
+		}
+		return pixels;
+	}
+
+	/** Reads a compressed 32-bit image from <code>channel</code>, decompressing its strips in parallel. */
+	public float[] readCompressed32bitImage(FileChannel channel) throws IOException {
+		initCounts();
+		float[] pixels = new float[nPixels];
+		readStripsInParallel(channel, pixels);
+		return pixels;
+	}
+
+	/** Decompresses every strip on the shared pool, each one straight into its own rows of <code>pixels</code>. */
+	private void readStripsInParallel(final FileChannel channel, final Object pixels) throws IOException {
+		if (fi.stripOffsets==null || fi.stripLengths==null || fi.stripLengths.length<fi.stripOffsets.length)
+			throw new IOException("Strip offsets and lengths are needed to read strips in parallel");
+		final int stripPixels = (fi.rowsPerStrip>0 && fi.rowsPerStrip<height ? fi.rowsPerStrip : height)*width;
+		List<Callable<Void>> strips = new ArrayList<Callable<Void>>(fi.stripOffsets.length);
+		for (int k=0; k<fi.stripOffsets.length; k++) {
+			final int strip = k;
+			strips.add(new Callable<Void>() {
+				public Void call() throws IOException {
+					byte[] byteArray = new byte[fi.stripLengths[strip]];
+					readFully(channel, byteArray, fi.stripOffsets[strip]);
+					int base = strip*stripPixels;
+					if (base>=nPixels)
+						return null;
+					int limit = Math.min(base+stripPixels, nPixels);
+					if (pixels instanceof byte[] && fi.compression==FileInfo.ZIP)
+						zipUncompress(byteArray, (byte[])pixels, base, limit-base);
+					else
+						storeStrip(uncompress(byteArray), pixels, base, limit);
+					return null;
+				}
+			});
+		}
+		invokeAll(strips);
+	}
+
+	/** Reads the 8-bit pixels inside the rectangle (x, y, w, h), reading and
+		decompressing in parallel only the strips or tiles that overlap it. */
+	public byte[] readRegion8bitImage(FileChannel channel, int x, int y, int w, int h) throws IOException {
+		byte[] pixels = new byte[w*h];
+		readRegionInParallel(channel, pixels, x, y, w, h);
+		return pixels;
+	}
+
+	/** Reads the 16-bit pixels inside the rectangle (x, y, w, h), reading and
+		decompressing in parallel only the strips or tiles that overlap it. Signed pixels are
+		converted to unsigned by adding 32768. */
+	public short[] readRegion16bitImage(FileChannel channel, int x, int y, int w, int h) throws IOException {
+		short[] pixels = new short[w*h];
+		readRegionInParallel(channel, pixels, x, y, w, h);
+		if (fi.fileType==FileInfo.GRAY16_SIGNED) {
+			for (int i=0; i<pixels.length; i++)
+				pixels[i] = (short)(pixels[i]+32768);
+		}
+		return pixels;
+	}
+
+	/** Reads the 32-bit pixels inside the rectangle (x, y, w, h), reading and
+		decompressing in parallel only the strips or tiles that overlap it. */
+	public float[] readRegion32bitImage(FileChannel channel, int x, int y, int w, int h) throws IOException {
+		float[] pixels = new float[w*h];
+		readRegionInParallel(channel, pixels, x, y, w, h);
+		return pixels;
+	}
+
+	private void readRegionInParallel(FileChannel channel, Object pixels, int x, int y, int w, int h) throws IOException {
+		if (x<0 || y<0 || w<=0 || h<=0 || x+w>width || y+h>height)
+			throw new IOException("Region "+w+"x"+h+" at ("+x+","+y+") is outside the "+width+"x"+height+" image");
+		initCounts();
+		if (fi.tileWidth>0 && fi.tileHeight>0)
+			readTilesInParallel(channel, pixels, x, y, w, h);
+		else
+			readStripsInParallel(channel, pixels, x, y, w, h);
+	}
+
+	/** Reads, on the shared pool, each strip that overlaps the rectangle (x, y, w, h), and copies
+		the part of it inside the rectangle into <code>pixels</code>. Compressed strips are read
+		and decompressed whole; of uncompressed ones, only the bytes inside the rectangle are read. */
+	private void readStripsInParallel(final FileChannel channel, final Object pixels, final int x, final int y, final int w, final int h) throws IOException {
+		final long[] offsets = fi.stripOffsets!=null && fi.stripOffsets.length>0 ? fi.stripOffsets : new long[] {fi.getOffset()};
+		int rows = fi.rowsPerStrip>0 ? fi.rowsPerStrip : (height+offsets.length-1)/offsets.length;
+		final int rowsPerStrip = offsets.length>1 && rows<height ? rows : height;
+		final int rowBytes = width*bytesPerPixel;
+		final boolean compressed = fi.compression>FileInfo.COMPRESSION_NONE;
+		if (compressed && (fi.stripLengths==null || fi.stripLengths.length<offsets.length))
+			throw new IOException("Strip lengths are needed to read compressed strips");
+		List<Callable<Void>> strips = new ArrayList<Callable<Void>>();
+		for (int k=y/rowsPerStrip; k<=(y+h-1)/rowsPerStrip && k<offsets.length; k++) {
+			final int strip = k, stripY = k*rowsPerStrip;
+			strips.add(new Callable<Void>() {
+				public Void call() throws IOException {
+					int y0 = Math.max(y, stripY), y1 = Math.min(y+h, stripY+rowsPerStrip);
+					if (!compressed) {
+						byte[] row = new byte[w*bytesPerPixel];
+						for (int r=y0; r<y1; r++) {
+							readFully(channel, row, offsets[strip] + (long)(r-stripY)*rowBytes + (long)x*bytesPerPixel);
+							storePixels(row, 0, pixels, (r-y)*w, (r-y)*w+w, true);
+						}
+						return null;
+					}
+					byte[] byteArray = new byte[fi.stripLengths[strip]];
+					readFully(channel, byteArray, offsets[strip]);
+					byteArray = uncompress(byteArray);
+					for (int r=y0; r<y1; r++) {
+						int offset = (r-stripY)*rowBytes + x*bytesPerPixel;
+						int n = Math.min(w, (byteArray.length-offset)/bytesPerPixel);
+						if (n<=0)
+							break; // short strip
+						int base = (r-y)*w;
+						storePixels(byteArray, offset, pixels, base, base+n);
+					}
+					return null;
+				}
+			});
+		}
+		invokeAll(strips);
+	}
+
+	/** Decompresses, on the shared pool, each tile that overlaps the rectangle (x, y, w, h),
+		and copies the part of it inside the rectangle into <code>pixels</code>. */
+	private void readTilesInParallel(final FileChannel channel, final Object pixels, final int x, final int y, final int w, final int h) throws IOException {
+		final int tileWidth = fi.tileWidth, tileHeight = fi.tileHeight;
+		if (fi.stripOffsets==null || fi.stripLengths==null)
+			throw new IOException("Tile offsets and byte counts are needed to read tiles");
+		// tiles are decompressed as if each were a single strip of a tile-sized image
+		FileInfo tileInfo = (FileInfo)fi.clone();
+		tileInfo.width = tileWidth;
+		tileInfo.height = tileHeight;
+		tileInfo.rowsPerStrip = tileHeight;
+		final ImageReader tileReader = new ImageReader(tileInfo);
+		tileReader.initCounts();
+		final int tilesAcross = (width+tileWidth-1)/tileWidth;
+		List<Callable<Void>> tiles = new ArrayList<Callable<Void>>();
+		for (int ty=y/tileHeight; ty<=(y+h-1)/tileHeight; ty++) {
+			for (int tx=x/tileWidth; tx<=(x+w-1)/tileWidth; tx++) {
+				final int tile = ty*tilesAcross+tx;
+				if (tile>=fi.stripOffsets.length || tile>=fi.stripLengths.length)
+					throw new IOException("Missing tile "+tile);
+				final int tileX = tx*tileWidth, tileY = ty*tileHeight;
+				tiles.add(new Callable<Void>() {
+					public Void call() throws IOException {
+						byte[] byteArray = new byte[fi.stripLengths[tile]];
+						readFully(channel, byteArray, fi.stripOffsets[tile]);
+						byteArray = tileReader.uncompress(byteArray);
+						int x0 = Math.max(x, tileX), x1 = Math.min(x+w, tileX+tileWidth);
+						int y0 = Math.max(y, tileY), y1 = Math.min(y+h, tileY+tileHeight);
+						for (int row=y0; row<y1; row++) {
+							int offset = ((row-tileY)*tileWidth + x0-tileX)*bytesPerPixel;
+							int n = Math.min(x1-x0, (byteArray.length-offset)/bytesPerPixel);
+							if (n<=0)
+								break; // short tile
+							int base = (row-y)*w + x0-x;
+							storePixels(byteArray, offset, pixels, base, base+n, fi.compression==FileInfo.COMPRESSION_NONE);
+						}
+						return null;
+					}
+				});
+			}
+		}
+		invokeAll(tiles);
+	}
+
+	/** Runs <code>tasks</code> on the shared pool, rethrowing the first failure as an IOException. */
+	private static void invokeAll(List<Callable<Void>> tasks) throws IOException {
+		try {
+			for (Future<Void> done : stripPool.invokeAll(tasks))
+				done.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while decompressing");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	private void readFully(FileChannel channel, byte[] bytes, long position) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position+buffer.position())==-1) {eofError(); break;}
+		}
+	}
+
+	/** Converts one decompressed strip into pixels[base, limit). */
+	private void storeStrip(byte[] byteArray, Object pixels, int base, int limit) {
+		int pixelsRead = byteArray.length/bytesPerPixel;
+		pixelsRead = pixelsRead - (pixelsRead%width);
+		int pmax = Math.min(base+pixelsRead, limit);
+		storePixels(byteArray, 0, pixels, base, pmax);
+	}
+
+	/** Converts the samples starting at byteArray[offset] into pixels[base, pmax). */
+	private void storePixels(byte[] byteArray, int offset, Object pixels, int base, int pmax) {
+		storePixels(byteArray, offset, pixels, base, pmax, false);
+	}
+
+	/** Converts the samples starting at byteArray[offset] into pixels[base, pmax). With
+		<code>integerValues</code>, 32-bit integer samples become their value, as in
+		read32bitImage, rather than being taken as float bits, as in the compressed readers. */
+	private void storePixels(byte[] byteArray, int offset, Object pixels, int base, int pmax, boolean integerValues) {
+		if (pixels instanceof byte[]) {
+			byte[] bytes = (byte[])pixels;
+			System.arraycopy(byteArray, offset, bytes, base, pmax-base);
+		} else if (pixels instanceof short[]) {
+			short[] shorts = (short[])pixels;
+			if (fi.intelByteOrder) {
+				for (int i=base,j=offset; i<pmax; i++,j+=2)
+					shorts[i] = (short)(((byteArray[j+1]&0xff)<<8) | (byteArray[j]&0xff));
+			} else {
+				for (int i=base,j=offset; i<pmax; i++,j+=2)
+					shorts[i] = (short)(((byteArray[j]&0xff)<<8) | (byteArray[j+1]&0xff));
+			}
+		} else {
+			float[] floats = (float[])pixels;
+			int tmp;
+			if (integerValues && fi.fileType!=FileInfo.GRAY32_FLOAT) {
+				for (int i=base,j=offset; i<pmax; i++,j+=4) {
+					tmp = getInt(byteArray, j, fi.intelByteOrder);
+					floats[i] = fi.fileType==FileInfo.GRAY32_UNSIGNED ? (float)(tmp&0xffffffffL) : tmp;
+				}
+			} else if (fi.intelByteOrder) {
+				for (int i=base,j=offset; i<pmax; i++,j+=4) {
+					tmp = (int)(((byteArray[j+3]&0xff)<<24) | ((byteArray[j+2]&0xff)<<16) | ((byteArray[j+1]&0xff)<<8) | (byteArray[j]&0xff));
+					floats[i] = Float.intBitsToFloat(tmp);
+				}
+			} else {
+				for (int i=base,j=offset; i<pmax; i++,j+=4) {
+					tmp = (int)(((byteArray[j]&0xff)<<24) | ((byteArray[j+1]&0xff)<<16) | ((byteArray[j+2]&0xff)<<8) | (byteArray[j+3]&0xff));
+					floats[i] = Float.intBitsToFloat(tmp);
+				}
+			}
+		}
+	}
+
+	public byte[] uncompress(byte[] input) throws IOException {
 		if (fi.compression==FileInfo.PACK_BITS)
 			return packBitsUncompress(input, fi.rowsPerStrip*fi.width*fi.getBytesPerPixel());
 		else if (fi.compression==FileInfo.LZW || fi.compression==FileInfo.LZW_WITH_DIFFERENCING)
@@ -764,84 +1068,164 @@ public class ImageReader {
 			return input;
 	}
 
-	/** TIFF Adobe ZIP support contributed by Jason Newton. */
-	public byte[] zipUncompress(byte[] input) {
-		ByteArrayOutputStream imageBuffer = new ByteArrayOutputStream();
-		byte[] buffer = new byte[1024];
-		Inflater decompressor = new Inflater();
+	/** TIFF Adobe ZIP support contributed by Jason Newton. Output is sized from the strip
+		geometry, and only trimmed if the strip turns out to be shorter (e.g. the last one). */
+	public byte[] zipUncompress(byte[] input) throws IOException {
+		long stripBytes = (long)fi.rowsPerStrip*width*bytesPerPixel;
+		int expected = (int)(stripBytes>0 && stripBytes<byteCount ? stripBytes : byteCount);
+		byte[] output = new byte[expected];
+		int length = zipUncompress(input, output, 0, expected);
+		return length==expected ? output : Arrays.copyOf(output, length);
+	}
+
+	/** Inflates <code>input</code> straight into dest[offset, offset+length), using this
+		thread's pooled Inflater, and returns the number of bytes written. */
+	public int zipUncompress(byte[] input, byte[] dest, int offset, int length) throws IOException {
+		Inflater decompressor = inflaters.get();
 		decompressor.setInput(input);
+		int count = 0;
 		try {
-			while(!decompressor.finished()) {
-				int rlen = decompressor.inflate(buffer);
-				imageBuffer.write(buffer, 0, rlen);
+			while (count<length && !decompressor.finished()) {
+				int rlen = decompressor.inflate(dest, offset+count, length-count);
+				if (rlen==0 && (decompressor.needsInput() || decompressor.needsDictionary()))
+					break;
+				count += rlen;
 			}
-		} catch(DataFormatException e){
+		} catch(DataFormatException e) {
+			throw new IOException("Corrupt ZIP-compressed strip: "+e.getMessage(), e);
+		} finally {
+			decompressor.reset();
 		}
-		decompressor.end();
-		return imageBuffer.toByteArray();
+		return count;
 	}
 
-  /**
- * Utility method for decoding an LZW-compressed image strip. 
- * Adapted from the TIFF 6.0 Specification:
- * http://partners.adobe.com/asn/developer/pdfs/tn/TIFF6.pdf (page 61)
- * Author: Curtis Rueden (ctrueden at wisc.edu)
- */
+	/**
+	 * Decodes an LZW-compressed image strip, as described by the TIFF 6.0 Specification
+	 * (page 61). Each table entry is stored as the code of its prefix plus one suffix byte,
+	 * so strings are written straight into the output, last byte first, without being copied
+	 * into the table. Codes are read through a bit cursor that moves forward through the input.
+	 * Horizontal differencing (predictor 2) is undone before the strip is returned.
+	 */
 	public byte[] lzwUncompress(byte[] input) {
 		if (input==null || input.length==0)
 			return input;
-		byte[][] symbolTable = new byte[4096][1];
+		int limit = byteCount>0 && byteCount<Integer.MAX_VALUE ? (int)byteCount : Integer.MAX_VALUE;
+		long stripBytes = (long)fi.rowsPerStrip*width*bytesPerPixel;
+		byte[] out = new byte[(int)(stripBytes>0 && stripBytes<limit ? stripBytes : Math.min(limit, 8192))];
+		int outLength = 0;
+		short[] prefix = new short[4096];
+		byte[] suffix = new byte[4096];
+		byte[] first = new byte[4096];
+		int[] length = new int[4096];
+		for (int i=0; i<256; i++) {
+			prefix[i] = -1;
+			suffix[i] = (byte)i;
+			first[i] = (byte)i;
+			length[i] = 1;
+		}
 		int bitsToRead = 9;
 		int nextSymbol = 258;
-		int code;
 		int oldCode = -1;
-		ByteVector out = new ByteVector(8192);
-		byte[] byteBuffer1 = new byte[16];
-		byte[] byteBuffer2 = new byte[16];
-		
-		while (out.size()<byteCount) {
-			code = BitBuffer.getBits(input, bitsToRead);
-			if (code==EOI_CODE || code==-1)
+		long bitPosition = 0;
+		long inputBits = (long)input.length*8;
+		while (outLength<limit) {
+			// read the next code, most significant bit first
+			if (bitPosition+bitsToRead>inputBits)
+				break;
+			int code = 0;
+			for (int bits=bitsToRead; bits>0; ) {
+				int index = (int)(bitPosition>>>3);
+				int available = 8-(int)(bitPosition&7);
+				int take = Math.min(available, bits);
+				code = (code<<take) | (((input[index]&0xff)>>>(available-take)) & ((1<<take)-1));
+				bits -= take;
+				bitPosition += take;
+			}
+			if (code==EOI_CODE)
 				break;
 			if (code==CLEAR_CODE) {
-				// initialize symbol table
-				for (int i = 0; i < 256; i++)
-					symbolTable[i][0] = (byte)i;
 				nextSymbol = 258;
 				bitsToRead = 9;
-				code = BitBuffer.getBits(input, bitsToRead);
-				if (code==EOI_CODE || code==-1)
-					break;
-				out.add(symbolTable[code]);
-				oldCode = code;
-			} else {
-				if (code<nextSymbol) {
-					// code is in table
-					out.add(symbolTable[code]);
-					// add string to table
-					ByteVector symbol = new ByteVector(byteBuffer1);
-					symbol.add(symbolTable[oldCode]);
-					symbol.add(symbolTable[code][0]);
-					symbolTable[nextSymbol] = symbol.toByteArray(); //**
-					oldCode = code;
-					nextSymbol++;
-				} else {
-					// out of table
-					ByteVector symbol = new ByteVector(byteBuffer2);
-					symbol.add(symbolTable[oldCode]);
-					symbol.add(symbolTable[oldCode][0]);
-					byte[] outString = symbol.toByteArray();
-					out.add(outString);
-					symbolTable[nextSymbol] = outString; //**
-					oldCode = code;
-					nextSymbol++;
-				}
+				oldCode = -1;
+				continue;
+			}
+			if (code>nextSymbol || (code==nextSymbol && oldCode==-1))
+				break; // corrupt strip
+			if (oldCode!=-1 && nextSymbol<4096) {
+				// add the previous string plus the first byte of this one to the table
+				prefix[nextSymbol] = (short)oldCode;
+				suffix[nextSymbol] = code<nextSymbol ? first[code] : first[oldCode];
+				first[nextSymbol] = first[oldCode];
+				length[nextSymbol] = length[oldCode]+1;
+				nextSymbol++;
 				if (nextSymbol == 511) { bitsToRead = 10; }
 				if (nextSymbol == 1023) { bitsToRead = 11; }
 				if (nextSymbol == 2047) { bitsToRead = 12; }
 			}
+			int n = length[code];
+			if (outLength+n>out.length) {
+				int size = (int)Math.min(Math.max((long)out.length*2, (long)outLength+n), Integer.MAX_VALUE);
+				out = Arrays.copyOf(out, size);
+			}
+			for (int c=code, i=outLength+n-1; i>=outLength; i--) {
+				out[i] = suffix[c];
+				c = prefix[c];
+			}
+			outLength += n;
+			oldCode = code;
+		}
+		if (outLength>limit)
+			outLength = limit;
+		if (outLength!=out.length)
+			out = Arrays.copyOf(out, outLength);
+		if (fi.compression==FileInfo.LZW_WITH_DIFFERENCING)
+			undoHorizontalDifferencing(out, outLength);
+		return out;
+	}
+
+	/** Undoes the horizontal differencing predictor, adding each sample to the one to its left
+		within the same row. Samples wider than a byte are summed in the file's byte order. */
+	void undoHorizontalDifferencing(byte[] data, int length) {
+		int sampleBytes = 1, stride = 1;
+		switch (fi.fileType) {
+			case FileInfo.GRAY16_SIGNED: case FileInfo.GRAY16_UNSIGNED:
+				sampleBytes = 2; break;
+			case FileInfo.GRAY32_INT: case FileInfo.GRAY32_UNSIGNED: case FileInfo.GRAY32_FLOAT:
+				sampleBytes = 4; break;
+			case FileInfo.GRAY8: case FileInfo.COLOR8: case FileInfo.RGB_PLANAR:
+				break;
+			default: // chunky colour: one byte per sample, bytesPerPixel samples per pixel
+				stride = bytesPerPixel;
+		}
+		int rowBytes = width*stride*sampleBytes;
+		boolean intel = fi.intelByteOrder;
+		for (int row=0; row<length; row+=rowBytes) {
+			int end = Math.min(row+rowBytes, length);
+			if (sampleBytes==1) {
+				for (int b=row+stride; b<end; b++)
+					data[b] += data[b-stride];
+			} else if (sampleBytes==2) {
+				for (int b=row+2; b+1<end; b+=2) {
+					int lo = intel ? b : b+1, hi = intel ? b+1 : b;
+					int value = ((data[hi]&0xff)<<8 | (data[lo]&0xff)) + ((data[hi-2]&0xff)<<8 | (data[lo-2]&0xff));
+					data[lo] = (byte)value;
+					data[hi] = (byte)(value>>>8);
+				}
+			} else {
+				for (int b=row+4; b+3<end; b+=4) {
+					int value = getInt(data, b, intel) + getInt(data, b-4, intel);
+					for (int i=0; i<4; i++)
+						data[intel ? b+i : b+3-i] = (byte)(value>>>(8*i));
+				}
+			}
 		}
-		return out.toByteArray();
+	}
+
+	private static int getInt(byte[] data, int index, boolean intel) {
+		if (intel)
+			return (data[index+3]&0xff)<<24 | (data[index+2]&0xff)<<16 | (data[index+1]&0xff)<<8 | (data[index]&0xff);
+		else
+			return (data[index]&0xff)<<24 | (data[index+1]&0xff)<<16 | (data[index+2]&0xff)<<8 | (data[index+3]&0xff);
 	}
 	 
 	/** Based on the Bio-Formats PackbitsCodec written by Melissa Linkert. */
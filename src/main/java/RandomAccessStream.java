@@ -4,26 +4,40 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 
 /**
  * RandomAccessStream. This is a class that uses a memory cache to allow seeking
  * within an InputStream. Based on the JAI MemoryCacheSeekableStream class. Can
  * also be constructed from a RandomAccessFile, which uses less memory since the
- * memory cache is not required.
+ * memory cache is not required, or from a FileChannel.
+ * <p>
+ * The sequential read and seek methods share one file pointer, so only one
+ * thread may use them at a time. The positional
+ * {@link #read(long, byte[], int, int)} and
+ * {@link #readFully(long, byte[], int, int)} leave the file pointer alone and
+ * may be called by any number of threads at once.
  */
 
 public final class RandomAccessStream extends InputStream {
 
-    private static final int BLOCK_SIZE = 512;
-    private static final int BLOCK_MASK = 511;
-    private static final int BLOCK_SHIFT = 9;
+    private static final int BLOCK_SIZE = 65536;
+    private static final int BLOCK_MASK = 65535;
+    private static final int BLOCK_SHIFT = 16;
+    private static final int WINDOW_SIZE = 8192;
     private InputStream src;
     private RandomAccessFile ras;
+    private FileChannel channel;
     private long pointer;
-    private ArrayList data;
-    private int length;
+    private ArrayList<byte[]> data;
+    private long length;
     private boolean foundEOS;
+    // read-ahead for the sequential methods in FileChannel mode
+    private byte[] window;
+    private long windowStart;
+    private int windowLength;
 
     /**
      * Constructs a RandomAccessStream from an InputStream. Seeking backwards is
@@ -32,7 +46,7 @@ public final class RandomAccessStream extends InputStream {
      */
     public RandomAccessStream(InputStream inputstream) {
         pointer = 0L;
-        data = new ArrayList();
+        data = new ArrayList<byte[]>();
         length = 0;
         foundEOS = false;
         src = inputstream;
@@ -46,6 +60,17 @@ public final class RandomAccessStream extends InputStream {
         this.ras = ras;
     }
 
+    /**
+     * Constructs a RandomAccessStream from a FileChannel. Sequential reads
+     * go through a small read-ahead buffer, and positional reads go straight
+     * to the channel.
+     * @param channel 
+     */
+    public RandomAccessStream(FileChannel channel) {
+        this.channel = channel;
+        window = new byte[WINDOW_SIZE];
+    }
+
     public int getFilePointer() throws IOException {
         if (ras != null) {
             return (int) ras.getFilePointer();
@@ -67,16 +92,35 @@ public final class RandomAccessStream extends InputStream {
         if (ras != null) {
             return ras.read();
         }
+        if (channel != null) {
+            if (!fillWindow()) {
+                return -1;
+            }
+            return window[(int) (pointer++ - windowStart)] & 0xff;
+        }
         long l = pointer + 1L;
         long l1 = readUntil(l);
         if (l1 >= l) {
-            byte abyte0[] = (byte[]) data.get((int) (pointer >> BLOCK_SHIFT));
+            byte abyte0[] = block((int) (pointer >> BLOCK_SHIFT));
             return abyte0[(int) (pointer++ & BLOCK_MASK)] & 0xff;
         } else {
             return -1;
         }
     }
 
+    /**
+     * Makes sure the read-ahead buffer holds the byte at the file pointer.
+     * @return false at the end of the channel.
+     */
+    private boolean fillWindow() throws IOException {
+        if (pointer >= windowStart && pointer < windowStart + windowLength) {
+            return true;
+        }
+        windowStart = pointer;
+        windowLength = Math.max(read(pointer, window, 0, WINDOW_SIZE), 0);
+        return windowLength > 0;
+    }
+
     @Override
     public int read(byte[] bytes, int off, int len) throws IOException {
         if (bytes == null) {
@@ -91,12 +135,27 @@ public final class RandomAccessStream extends InputStream {
         if (len == 0) {
             return 0;
         }
+        if (channel != null) {
+            int k;
+            if (len >= WINDOW_SIZE) {
+                k = read(pointer, bytes, off, len);
+            } else if (fillWindow()) {
+                k = Math.min(len, windowLength - (int) (pointer - windowStart));
+                System.arraycopy(window, (int) (pointer - windowStart), bytes, off, k);
+            } else {
+                k = -1;
+            }
+            if (k > 0) {
+                pointer += k;
+            }
+            return k;
+        }
         long l = readUntil(pointer + len);
         if (l <= pointer) {
             return -1;
         } else {
-            byte abyte1[] = (byte[]) data.get((int) (pointer >> BLOCK_SHIFT));
-            int k = Math.min(len, BLOCK_SIZE - (int) (pointer & BLOCK_MASK));
+            byte abyte1[] = block((int) (pointer >> BLOCK_SHIFT));
+            int k = (int) Math.min(Math.min(len, BLOCK_SIZE - (int) (pointer & BLOCK_MASK)), l - pointer);
             System.arraycopy(abyte1, (int) (pointer & BLOCK_MASK), bytes, off, k);
             pointer += k;
             return k;
@@ -118,7 +177,60 @@ public final class RandomAccessStream extends InputStream {
         } while (read < len);
     }
 
-    private long readUntil(long l) throws IOException {
+    /**
+     * Reads up to <code>len</code> bytes starting at <code>position</code>,
+     * without moving the file pointer. Safe to call from several threads at
+     * once.
+     * @return The number of bytes read, or -1 if <code>position</code> is at
+     * or past the end of the stream.
+     */
+    public int read(long position, byte[] bytes, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len > bytes.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (channel != null || ras != null) {
+            FileChannel fc = channel != null ? channel : ras.getChannel();
+            return fc.read(ByteBuffer.wrap(bytes, off, len), position);
+        }
+        long end = readUntil(position + len);
+        if (end <= position) {
+            return -1;
+        }
+        int n = (int) Math.min(len, end - position);
+        for (int copied = 0; copied < n;) {
+            long p = position + copied;
+            int k = Math.min(n - copied, BLOCK_SIZE - (int) (p & BLOCK_MASK));
+            System.arraycopy(block((int) (p >> BLOCK_SHIFT)), (int) (p & BLOCK_MASK), bytes, off + copied, k);
+            copied += k;
+        }
+        return n;
+    }
+
+    /**
+     * Reads exactly <code>len</code> bytes starting at <code>position</code>,
+     * without moving the file pointer. Safe to call from several threads at
+     * once.
+     * @throws EOFException if the stream ends first.
+     */
+    public void readFully(long position, byte[] bytes, int off, int len) throws IOException {
+        int read = 0;
+        while (read < len) {
+            int l = read(position + read, bytes, off + read, len - read);
+            if (l < 0) {
+                throw new EOFException();
+            }
+            read += l;
+        }
+    }
+
+    private synchronized byte[] block(int index) {
+        return data.get(index);
+    }
+
+    private synchronized long readUntil(long l) throws IOException {
         if (l < length) {
             return l;
         }
@@ -126,7 +238,7 @@ public final class RandomAccessStream extends InputStream {
             return length;
         }
         int i = (int) (l >> BLOCK_SHIFT);
-        int j = length >> BLOCK_SHIFT;
+        int j = (int) (length >> BLOCK_SHIFT);
         for (int k = j; k <= i; k++) {
             byte abyte0[] = new byte[BLOCK_SIZE];
             data.add(abyte0);
@@ -214,6 +326,8 @@ public final class RandomAccessStream extends InputStream {
         //ij.IJ.log("close: "+(data!=null?""+data.size():""));
         if (ras != null) {
             ras.close();
+        } else if (channel != null) {
+            channel.close();
         } else {
             data.removeAll(data);
             src.close();
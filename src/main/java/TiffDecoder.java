@@ -4,6 +4,8 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 
 /**
@@ -36,6 +38,9 @@ public class TiffDecoder {
     public static final int PREDICTOR = 317;
     public static final int COLOR_MAP = 320;
     public static final int TILE_WIDTH = 322;
+    public static final int TILE_LENGTH = 323;
+    public static final int TILE_OFFSETS = 324;
+    public static final int TILE_BYTE_COUNTS = 325;
     public static final int SAMPLE_FORMAT = 339;
     public static final int JPEG_TABLES = 347;
     public static final int METAMORPH1 = 33628;
@@ -51,6 +56,8 @@ public class TiffDecoder {
     //field types
     static final int SHORT = 3;
     static final int LONG = 4;
+    static final int LONG8 = 16;  // BigTIFF
+    static final int IFD8 = 18;  // BigTIFF
     // metadata types
     static final int MAGIC_NUMBER = 0x494a494a;  // "IJIJ"
     static final int INFO = 0x696e666f;  // "info" (Info image property)
@@ -66,10 +73,14 @@ public class TiffDecoder {
     protected RandomAccessStream in;
     protected boolean debugMode;
     private boolean littleEndian;
+    private boolean bigTiff;
     private String dInfo;
     private int ifdCount;
     private int[] metaDataCounts;
     private String tiffMetadata;
+    private boolean bufferedIFDs = true;
+    private boolean extrapolateIFDs = false;
+    private long nextIFDOffset;
     
     public TiffDecoder(File file){
         this.file = file;
@@ -125,20 +136,92 @@ public class TiffDecoder {
             in.close();
             return -1;
         }
-        int magicNumber = getShort(); // 42
-        long offset = ((long) getInt()) & 0xffffffffL;
-        return offset;
+        int magicNumber = getShort(); // 42, or 43 for BigTIFF
+        bigTiff = magicNumber == 43;
+        if (bigTiff) {
+            int offsetSize = getShort(); // always 8
+            int unused = getShort();
+            if (offsetSize != 8) {
+                in.close();
+                return -1;
+            }
+        }
+        return getOffset();
+    }
+
+    /** Reads a file offset: 8 bytes in a BigTIFF, otherwise 4 unsigned bytes. */
+    final long getOffset() throws IOException {
+        return bigTiff ? readLong() : ((long) getInt()) & 0xffffffffL;
+    }
+
+    /** Reads the number of entries of an IFD: 8 bytes in a BigTIFF, otherwise 2. */
+    final int getEntryCount() throws IOException {
+        return bigTiff ? (int) readLong() : getShort();
+    }
+
+    /** @return The size in bytes of an IFD entry. */
+    final int getEntrySize() {
+        return bigTiff ? 20 : 12;
+    }
+
+    /** @return The size in bytes of a file offset, and of an IFD entry's value field. */
+    final int getOffsetSize() {
+        return bigTiff ? 8 : 4;
+    }
+
+    /** @return The size in bytes of one value of the given field type. */
+    static int getTypeSize(int fieldType) {
+        switch (fieldType) {
+            case SHORT:
+            case 8: // SSHORT
+                return 2;
+            case LONG:
+            case 9: // SLONG
+            case 11: // FLOAT
+            case 13: // IFD
+                return 4;
+            case 5: // RATIONAL
+            case 10: // SRATIONAL
+            case 12: // DOUBLE
+            case LONG8:
+            case 17: // SLONG8
+            case IFD8:
+                return 8;
+            default: // BYTE, ASCII, SBYTE, UNDEFINED
+                return 1;
+        }
     }
 
-    int getValue(int fieldType, int count) throws IOException {
-        int value;
+    long getValue(int fieldType, int count) throws IOException {
+        long value;
         int unused;
         if (fieldType == SHORT && count == 1) {
             value = getShort();
             unused = getShort();
+            if (bigTiff) {
+                unused = getInt();
+            }
+        } else if (bigTiff && fieldType == LONG && count == 1) {
+            value = ((long) getInt()) & 0xffffffffL;
+            unused = getInt();
+        } else {
+            value = getOffset();
+        }
+        return value;
+    }
+
+    /** Reads the value field of an IFD entry from <code>entries</code>, as {@link #getValue(int, int)} does. */
+    long getValue(ByteBuffer entries, int fieldType, int count) {
+        long value;
+        int start = entries.position();
+        if (fieldType == SHORT && count == 1) {
+            value = entries.getShort() & 0xffff;
+        } else if (bigTiff && fieldType == LONG && count == 1) {
+            value = ((long) entries.getInt()) & 0xffffffffL;
         } else {
-            value = getInt();
+            value = bigTiff ? entries.getLong() : ((long) entries.getInt()) & 0xffffffffL;
         }
+        entries.position(start + getOffsetSize());
         return value;
     }
 
@@ -410,6 +493,18 @@ public class TiffDecoder {
             case STRIP_BYTE_COUNT:
                 nametag = "StripByteCount";
                 break;
+            case TILE_WIDTH:
+                nametag = "TileWidth";
+                break;
+            case TILE_LENGTH:
+                nametag = "TileLength";
+                break;
+            case TILE_OFFSETS:
+                nametag = "TileOffsets";
+                break;
+            case TILE_BYTE_COUNTS:
+                nametag = "TileByteCounts";
+                break;
             case X_RESOLUTION:
                 nametag = "XResolution";
                 break;
@@ -483,18 +578,35 @@ public class TiffDecoder {
     FileInfo OpenIFD() throws IOException {
         // Get Image File Directory data
         int tag, fieldType, count, value;
-        int nEntries = getShort();
+        long lvalue;
+        int nEntries = getEntryCount();
         if (nEntries < 1 || nEntries > 1000) {
             return null;
         }
         ifdCount++;
         FileInfo fi = new FileInfo();
+        long entriesStart = in.getLongFilePointer();
+        ByteBuffer entries = null;
+        if (bufferedIFDs) {
+            // the entries and the offset of the next IFD, in one read
+            entries = readBuffer(nEntries * getEntrySize() + getOffsetSize());
+        }
         for (int i = 0; i < nEntries; i++) {
-            tag = getShort();
-            fieldType = getShort();
-            count = getInt();
-            value = getValue(fieldType, count);
-            long lvalue = ((long) value) & 0xffffffffL;
+            if (entries != null) {
+                tag = entries.getShort() & 0xffff;
+                fieldType = entries.getShort() & 0xffff;
+                count = bigTiff ? (int) entries.getLong() : entries.getInt();
+                lvalue = getValue(entries, fieldType, count);
+            } else {
+                tag = getShort();
+                fieldType = getShort();
+                count = bigTiff ? (int) readLong() : getInt();
+                lvalue = getValue(fieldType, count);
+            }
+            value = (int) lvalue;
+            // values that fit in the entry are stored in it rather than at an offset
+            long valueOffset = entriesStart + (long) i * getEntrySize() + getEntrySize() - getOffsetSize();
+            long dataOffset = (long) count * getTypeSize(fieldType) <= getOffsetSize() ? valueOffset : lvalue;
             if (debugMode && ifdCount < 10) {
                 dumpTag(tag, count, value, fi);
             }
@@ -509,37 +621,24 @@ public class TiffDecoder {
                     fi.height = value;
                     break;
                 case STRIP_OFFSETS:
+                case TILE_OFFSETS: // tiles are kept as strips, row by row
                     if (count == 1) {
-                        fi.stripOffsets = new int[]{value};
+                        fi.stripOffsets = new long[]{lvalue};
                     } else {
-                        long saveLoc = in.getLongFilePointer();
-                        in.seek(lvalue);
-                        fi.stripOffsets = new int[count];
-                        for (int c = 0; c < count; c++) {
-                            fi.stripOffsets[c] = getInt();
-                        }
-                        in.seek(saveLoc);
+                        fi.stripOffsets = getLongArray(dataOffset, count, fieldType);
                     }
-                    fi.offset = count > 0 ? fi.stripOffsets[0] : value;
+                    fi.longOffset = count > 0 ? fi.stripOffsets[0] : lvalue;
                     if (count > 1 && fi.stripOffsets[count - 1] < fi.stripOffsets[0]) {
-                        fi.offset = fi.stripOffsets[count - 1];
+                        fi.longOffset = fi.stripOffsets[count - 1];
                     }
+                    fi.offset = (int) fi.longOffset;
                     break;
                 case STRIP_BYTE_COUNT:
+                case TILE_BYTE_COUNTS:
                     if (count == 1) {
                         fi.stripLengths = new int[]{value};
                     } else {
-                        long saveLoc = in.getLongFilePointer();
-                        in.seek(lvalue);
-                        fi.stripLengths = new int[count];
-                        for (int c = 0; c < count; c++) {
-                            if (fieldType == SHORT) {
-                                fi.stripLengths[c] = getShort();
-                            } else {
-                                fi.stripLengths[c] = getInt();
-                            }
-                        }
-                        in.seek(saveLoc);
+                        fi.stripLengths = getIntArray(dataOffset, count, fieldType);
                     }
                     break;
                 case PHOTO_INTERP:
@@ -562,7 +661,7 @@ public class TiffDecoder {
                         }
                     } else if (count == 3) {
                         long saveLoc = in.getLongFilePointer();
-                        in.seek(lvalue);
+                        in.seek(dataOffset);
                         int bitDepth = getShort();
                         if (!(bitDepth == 8 || bitDepth == 16)) {
                             error("ImageJ can only open 8 and 16 bit/channel RGB images (" + bitDepth + ")");
@@ -585,13 +684,13 @@ public class TiffDecoder {
                     fi.rowsPerStrip = value;
                     break;
                 case X_RESOLUTION:
-                    double xScale = getRational(lvalue);
+                    double xScale = getRational(dataOffset);
                     if (xScale != 0.0) {
                         fi.pixelWidth = 1.0 / xScale;
                     }
                     break;
                 case Y_RESOLUTION:
-                    double yScale = getRational(lvalue);
+                    double yScale = getRational(dataOffset);
                     if (yScale != 0.0) {
                         fi.pixelHeight = 1.0 / yScale;
                     }
@@ -644,7 +743,7 @@ public class TiffDecoder {
                 case HOST_COMPUTER:
                 case ARTEST:
                     if (ifdCount == 1) {
-                        byte[] bytes = getString(count, lvalue);
+                        byte[] bytes = getString(count, dataOffset);
                         String s = bytes != null ? new String(bytes) : null;
                         saveMetadata(getName(tag), s);
                     }
@@ -656,11 +755,14 @@ public class TiffDecoder {
                     break;
                 case COLOR_MAP:
                     if (count == 768 && fi.fileType == FileInfo.GRAY8) {
-                        getColorMap(lvalue, fi);
+                        getColorMap(dataOffset, fi);
                     }
                     break;
                 case TILE_WIDTH:
-                    error("ImageJ cannot open tiled TIFFs");
+                    fi.tileWidth = value;
+                    break;
+                case TILE_LENGTH:
+                    fi.tileHeight = value;
                     break;
                 case SAMPLE_FORMAT:
                     if (fi.fileType == FileInfo.GRAY32_INT && value == FLOATING_POINT) {
@@ -682,7 +784,7 @@ public class TiffDecoder {
                     break;
                 case IMAGE_DESCRIPTION:
                     if (ifdCount == 1) {
-                        byte[] s = getString(count, lvalue);
+                        byte[] s = getString(count, dataOffset);
                         if (s != null) {
                             saveImageDescription(s, fi);
                         }
@@ -711,7 +813,7 @@ public class TiffDecoder {
                     break;
                 case META_DATA_BYTE_COUNTS:
                     long saveLoc = in.getLongFilePointer();
-                    in.seek(lvalue);
+                    in.seek(dataOffset);
                     metaDataCounts = new int[count];
                     for (int c = 0; c < count; c++) {
                         metaDataCounts[c] = getInt();
@@ -719,7 +821,7 @@ public class TiffDecoder {
                     in.seek(saveLoc);
                     break;
                 case META_DATA:
-                    getMetaData(value, fi);
+                    getMetaData(dataOffset, fi);
                     break;
                 default:
                     if (tag > 10000 && tag < 32768 && ifdCount > 1) {
@@ -727,6 +829,11 @@ public class TiffDecoder {
                     }
             }
         }
+        if (entries != null) {
+            nextIFDOffset = bigTiff ? entries.getLong() : ((long) entries.getInt()) & 0xffffffffL;
+        } else {
+            nextIFDOffset = getOffset();
+        }
         fi.fileFormat = FileInfo.TIFF;
         fi.fileName = name;
         fi.directory = directory;
@@ -736,7 +843,58 @@ public class TiffDecoder {
         return fi;
     }
 
-    void getMetaData(int loc, FileInfo fi) throws IOException {
+    /**
+     * Reads <code>length</code> bytes from the current position in a single read.
+     * @return The bytes, in a buffer set to the file's byte order.
+     */
+    ByteBuffer readBuffer(int length) throws IOException {
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return ByteBuffer.wrap(bytes).order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+    }
+
+    /** Reads an array of SHORT, LONG or LONG8 values stored at <code>offset</code>, all at once. */
+    long[] getLongArray(long offset, int count, int fieldType) throws IOException {
+        long[] values = new long[count];
+        long saveLoc = in.getLongFilePointer();
+        in.seek(offset);
+        if (bufferedIFDs) {
+            ByteBuffer buffer = readBuffer(count * getTypeSize(fieldType));
+            for (int c = 0; c < count; c++) {
+                if (fieldType == SHORT) {
+                    values[c] = buffer.getShort() & 0xffff;
+                } else if (fieldType == LONG8 || fieldType == IFD8) {
+                    values[c] = buffer.getLong();
+                } else {
+                    values[c] = ((long) buffer.getInt()) & 0xffffffffL;
+                }
+            }
+        } else {
+            for (int c = 0; c < count; c++) {
+                if (fieldType == SHORT) {
+                    values[c] = getShort();
+                } else if (fieldType == LONG8 || fieldType == IFD8) {
+                    values[c] = readLong();
+                } else {
+                    values[c] = ((long) getInt()) & 0xffffffffL;
+                }
+            }
+        }
+        in.seek(saveLoc);
+        return values;
+    }
+
+    /** Reads an array of values stored at <code>offset</code> that each fit in an int, such as strip lengths. */
+    int[] getIntArray(long offset, int count, int fieldType) throws IOException {
+        long[] values = getLongArray(offset, count, fieldType);
+        int[] ints = new int[count];
+        for (int c = 0; c < count; c++) {
+            ints[c] = (int) values[c];
+        }
+        return ints;
+    }
+
+    void getMetaData(long loc, FileInfo fi) throws IOException {
         if (metaDataCounts == null || metaDataCounts.length == 0) {
             return;
         }
@@ -931,10 +1089,166 @@ public class TiffDecoder {
         debugMode = true;
     }
 
+    /**
+     * Chooses whether each IFD is read into memory in one go (the default) or
+     * parsed a byte at a time straight from the file.
+     */
+    public void setBufferedIFDs(boolean buffered) {
+        bufferedIFDs = buffered;
+    }
+
+    /**
+     * Chooses whether stacks whose IFDs turn out to be evenly spaced have the
+     * rest of their frames laid out from the first few, rather than having
+     * every IFD parsed (the default). Only the last IFD and a few in between
+     * are parsed to check the layout, so a frame whose tags differ from the
+     * first ones elsewhere in the stack is not noticed.
+     */
+    public void setExtrapolateIFDs(boolean extrapolate) {
+        extrapolateIFDs = extrapolate;
+    }
+
+    /**
+     * @return A copy of <code>fi</code> with its offset and strips moved
+     * <code>delta</code> bytes further into the file.
+     */
+    public static FileInfo shiftFrame(FileInfo fi, long delta) {
+        FileInfo shifted = (FileInfo) fi.clone();
+        shifted.longOffset = fi.getOffset() + delta;
+        if (fi.stripOffsets != null) {
+            shifted.stripOffsets = new long[fi.stripOffsets.length];
+            for (int i = 0; i < fi.stripOffsets.length; i++) {
+                shifted.stripOffsets[i] = fi.stripOffsets[i] + delta;
+            }
+        }
+        return shifted;
+    }
+
+    /**
+     * Non-ImageJ stacks usually repeat the same IFD at a fixed stride. If the
+     * first three IFDs share their geometry, with IFDs and strips evenly
+     * spaced, the last IFD of that run is found by probing the predicted
+     * positions, and the frames in between are laid out without being parsed,
+     * once the last IFD and a sample of those in between are found to match
+     * the layout.
+     * @return The number of frames added to <code>info</code>, or 0 if the
+     * IFDs are not evenly spaced.
+     */
+    int extrapolateIFDs(ArrayList<FileInfo> info, long[] ifdOffsets, long next) throws IOException {
+        FileInfo f0 = info.get(0), f1 = info.get(1), f2 = info.get(2);
+        long spacing = ifdOffsets[1] - ifdOffsets[0];
+        if (spacing <= 0 || ifdOffsets[2] - ifdOffsets[1] != spacing || next - ifdOffsets[2] != spacing) {
+            return 0;
+        }
+        if (f0.stripOffsets == null || f0.stripLengths == null) {
+            return 0;
+        }
+        FileInfo[] frames = {f0, f1, f2};
+        for (int i = 1; i < frames.length; i++) {
+            FileInfo f = frames[i];
+            if (f.width != f0.width || f.height != f0.height || f.fileType != f0.fileType
+                    || f.compression != f0.compression || f.stripOffsets == null || f.stripLengths == null
+                    || f.stripOffsets.length != f0.stripOffsets.length
+                    || !java.util.Arrays.equals(f.stripLengths, f0.stripLengths)) {
+                return 0;
+            }
+            for (int s = 0; s < f.stripOffsets.length; s++) {
+                long d = f.stripOffsets[s] - frames[i - 1].stripOffsets[s];
+                if (d != spacing) {
+                    return 0;
+                }
+            }
+        }
+        long saveLoc = in.getLongFilePointer();
+        in.seek(ifdOffsets[0]);
+        int nEntries = getEntryCount();
+        // binary search for the last IFD that sits where the spacing predicts
+        long lo = 3, hi = (file.length() - ifdOffsets[0]) / spacing;
+        if (probeIFD(ifdOffsets[0] + lo * spacing, nEntries, spacing) < 0) {
+            in.seek(saveLoc);
+            return 0;
+        }
+        while (lo < hi) {
+            long mid = lo + (hi - lo + 1) / 2;
+            if (probeIFD(ifdOffsets[0] + mid * spacing, nEntries, spacing) >= 0) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        long last = probeIFD(ifdOffsets[0] + lo * spacing, nEntries, spacing);
+        if (last != 0L || !matchesLayout(f2, ifdOffsets[0], spacing, lo)) {
+            in.seek(saveLoc);
+            return 0; // the chain carries on somewhere else, or its frames differ, so walk it
+        }
+        in.seek(saveLoc);
+        for (long k = 3; k <= lo; k++) {
+            info.add(shiftFrame(f2, (k - 2) * spacing));
+        }
+        return (int) (lo - 2);
+    }
+
+    /**
+     * Parses the IFD of frame <code>last</code> and of a few frames evenly
+     * spread from frame 3 up to it, and compares each with <code>f2</code>
+     * shifted to where that frame should be.
+     * @return Whether every IFD parsed matches.
+     */
+    boolean matchesLayout(FileInfo f2, long firstIFD, long spacing, long last) throws IOException {
+        long savedNext = nextIFDOffset;
+        int savedCount = ifdCount;
+        try {
+            final int samples = 4;
+            for (int j = 0; j <= samples; j++) {
+                long k = 3 + (last - 3) * j / samples;
+                in.seek(firstIFD + k * spacing);
+                FileInfo fi = OpenIFD();
+                if (fi == null || !sameLayout(fi, shiftFrame(f2, (k - 2) * spacing))) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            nextIFDOffset = savedNext;
+            ifdCount = savedCount;
+        }
+    }
+
+    private static boolean sameLayout(FileInfo a, FileInfo b) {
+        return a.width == b.width && a.height == b.height && a.fileType == b.fileType
+                && a.compression == b.compression && a.nImages == b.nImages
+                && a.samplesPerPixel == b.samplesPerPixel && a.rowsPerStrip == b.rowsPerStrip
+                && a.tileWidth == b.tileWidth && a.tileHeight == b.tileHeight
+                && a.intelByteOrder == b.intelByteOrder && a.whiteIsZero == b.whiteIsZero
+                && java.util.Arrays.equals(a.stripOffsets, b.stripOffsets)
+                && java.util.Arrays.equals(a.stripLengths, b.stripLengths)
+                && (a.description == null ? b.description == null : a.description.equals(b.description));
+    }
+
+    /**
+     * @return The next-IFD offset of the IFD at <code>ifdOffset</code> if it has
+     * <code>nEntries</code> entries and points either nowhere or
+     * <code>spacing</code> bytes on, otherwise -1.
+     */
+    long probeIFD(long ifdOffset, int nEntries, long spacing) throws IOException {
+        long entriesStart = ifdOffset + (bigTiff ? 8 : 2);
+        long nextAt = entriesStart + (long) nEntries * getEntrySize();
+        if (nextAt + getOffsetSize() > file.length()) {
+            return -1L;
+        }
+        in.seek(ifdOffset);
+        if (getEntryCount() != nEntries) {
+            return -1L;
+        }
+        in.seek(nextAt);
+        long next = getOffset();
+        return next == 0L || next == ifdOffset + spacing ? next : -1L;
+    }
+
     public ArrayList<FileInfo> getTiffInfo() throws IOException {
         long ifdOffset;
         if (in == null) {
-            in = new RandomAccessStream(new RandomAccessFile(file, "r"));
+            in = new RandomAccessStream(new RandomAccessFile(file, "r").getChannel());
         }
         ArrayList<FileInfo> info = new ArrayList<FileInfo>();
         ifdOffset = OpenImageFileHeader();
@@ -942,12 +1256,20 @@ public class TiffDecoder {
             in.close();
             return null;
         }
+        long[] ifdOffsets = new long[3];
         while (ifdOffset > 0L) {
             in.seek(ifdOffset);
             FileInfo fi = OpenIFD();
             if (fi != null) {
+                if (info.size() < ifdOffsets.length) {
+                    ifdOffsets[info.size()] = ifdOffset;
+                }
                 info.add(fi);
-                ifdOffset = ((long) getInt()) & 0xffffffffL;
+                ifdOffset = nextIFDOffset;
+                if (extrapolateIFDs && info.size() == ifdOffsets.length && ifdOffset > 0L && fi.nImages <= 1
+                        && extrapolateIFDs(info, ifdOffsets, ifdOffset) > 0) {
+                    ifdOffset = 0L;
+                }
             } else {
                 ifdOffset = 0L;
             }
@@ -0,0 +1,227 @@
+package shalene;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary index of the frames of a TIFF file, so that reopening it can
+ * skip IFD parsing. The index holds each frame's geometry, offset and strips,
+ * and is only trusted while the TIFF file keeps the size and modification time
+ * it had when the index was written. Indexes are written to
+ * <code>~/.shalene/index</code>, so that opening a file leaves nothing in the
+ * data directory. Setting the system property <code>shalene.tiffindex</code>
+ * to <code>sidecar</code> writes them next to each file as
+ * <code>name.tif.tifidx</code> instead, falling back to the cache directory
+ * when the file's directory is not writable; setting it to <code>off</code>
+ * turns the index off.
+ */
+public final class TiffIndex {
+
+    public static final String EXTENSION = ".tifidx";
+    private static final int MAGIC_NUMBER = 0x54494458;  // "TIDX"
+    private static final int VERSION = 3;
+
+    public static final String MODE_PROPERTY = "shalene.tiffindex";
+
+    private TiffIndex() {
+    }
+
+    /** @return Whether indexes are read and written at all. */
+    public static boolean isEnabled() {
+        return !"off".equalsIgnoreCase(System.getProperty(MODE_PROPERTY));
+    }
+
+    private static boolean writesSidecars() {
+        return "sidecar".equalsIgnoreCase(System.getProperty(MODE_PROPERTY));
+    }
+
+    /** @return The index file kept next to <code>tiff</code>. */
+    public static File sidecar(File tiff) {
+        return new File(tiff.getPath() + EXTENSION);
+    }
+
+    /** @return The index file kept for <code>tiff</code> in the user's cache directory. */
+    public static File cached(File tiff) {
+        File dir = new File(System.getProperty("user.home"), ".shalene" + File.separator + "index");
+        String key = Integer.toHexString(tiff.getAbsolutePath().hashCode());
+        return new File(dir, tiff.getName() + "." + key + EXTENSION);
+    }
+
+    /**
+     * @return One FileInfo per frame of <code>tiff</code>, or null if there is
+     * no index for it, or the index is stale or unreadable.
+     */
+    public static ArrayList<FileInfo> read(File tiff) {
+        File[] candidates = {sidecar(tiff), cached(tiff)};
+        for (File index : candidates) {
+            if (index.isFile()) {
+                try {
+                    ArrayList<FileInfo> frames = read(tiff, index);
+                    if (frames != null) {
+                        return frames;
+                    }
+                } catch (IOException e) {
+                    // unreadable index: treat as a miss
+                }
+            }
+        }
+        return null;
+    }
+
+    private static ArrayList<FileInfo> read(File tiff, File index) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)));
+        try {
+            if (in.readInt() != MAGIC_NUMBER || in.readInt() != VERSION) {
+                return null;
+            }
+            if (in.readLong() != tiff.length() || in.readLong() != tiff.lastModified()) {
+                return null;
+            }
+            int nFrames = in.readInt();
+            ArrayList<FileInfo> frames = new ArrayList<FileInfo>(nFrames);
+            String directory = tiff.getParent() != null ? tiff.getParent() + File.separator : "";
+            for (int i = 0; i < nFrames; i++) {
+                FileInfo fi = new FileInfo();
+                fi.fileFormat = FileInfo.TIFF;
+                fi.fileName = tiff.getName();
+                fi.directory = directory;
+                fi.fileType = in.readInt();
+                fi.width = in.readInt();
+                fi.height = in.readInt();
+                fi.nImages = in.readInt();
+                fi.compression = in.readInt();
+                fi.rowsPerStrip = in.readInt();
+                fi.tileWidth = in.readInt();
+                fi.tileHeight = in.readInt();
+                fi.samplesPerPixel = in.readInt();
+                fi.gapBetweenImages = in.readInt();
+                fi.intelByteOrder = in.readBoolean();
+                fi.whiteIsZero = in.readBoolean();
+                fi.longOffset = in.readLong();
+                fi.offset = (int) fi.longOffset;
+                fi.stripOffsets = readLongs(in);
+                fi.stripLengths = readInts(in);
+                if (in.readBoolean()) {
+                    fi.description = in.readUTF();
+                }
+                frames.add(fi);
+            }
+            return frames;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the index of <code>tiff</code> to the user's cache directory, or,
+     * in sidecar mode, next to it if possible.
+     * @return false if the index could not be written anywhere.
+     */
+    public static boolean write(File tiff, List<FileInfo> frames) {
+        File[] candidates = writesSidecars()
+                ? new File[] {sidecar(tiff), cached(tiff)}
+                : new File[] {cached(tiff)};
+        for (File index : candidates) {
+            File dir = index.getAbsoluteFile().getParentFile();
+            if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+                continue;
+            }
+            try {
+                write(tiff, frames, index);
+                return true;
+            } catch (IOException e) {
+                index.delete();
+            }
+        }
+        return false;
+    }
+
+    private static void write(File tiff, List<FileInfo> frames, File index) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(index)));
+        try {
+            out.writeInt(MAGIC_NUMBER);
+            out.writeInt(VERSION);
+            out.writeLong(tiff.length());
+            out.writeLong(tiff.lastModified());
+            out.writeInt(frames.size());
+            for (FileInfo fi : frames) {
+                out.writeInt(fi.fileType);
+                out.writeInt(fi.width);
+                out.writeInt(fi.height);
+                out.writeInt(fi.nImages);
+                out.writeInt(fi.compression);
+                out.writeInt(fi.rowsPerStrip);
+                out.writeInt(fi.tileWidth);
+                out.writeInt(fi.tileHeight);
+                out.writeInt(fi.samplesPerPixel);
+                out.writeInt(fi.gapBetweenImages);
+                out.writeBoolean(fi.intelByteOrder);
+                out.writeBoolean(fi.whiteIsZero);
+                out.writeLong(fi.getOffset());
+                writeLongs(out, fi.stripOffsets);
+                writeInts(out, fi.stripLengths);
+                boolean hasDescription = fi.description != null && fi.description.length() < 16384;
+                out.writeBoolean(hasDescription);
+                if (hasDescription) {
+                    out.writeUTF(fi.description);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static int[] readInts(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        if (n < 0) {
+            return null;
+        }
+        int[] values = new int[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = in.readInt();
+        }
+        return values;
+    }
+
+    private static long[] readLongs(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        if (n < 0) {
+            return null;
+        }
+        long[] values = new long[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = in.readLong();
+        }
+        return values;
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        if (values == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private static void writeLongs(DataOutputStream out, long[] values) throws IOException {
+        if (values == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(values.length);
+        for (long value : values) {
+            out.writeLong(value);
+        }
+    }
+}
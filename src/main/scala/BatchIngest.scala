@@ -0,0 +1,110 @@
+package shalene
+
+import java.io.File
+import java.nio.file.{Files, Path}
+import java.util.concurrent.{ForkJoinPool, Semaphore, TimeUnit}
+import java.util.concurrent.atomic.AtomicInteger
+import scala.collection.JavaConversions._
+import scala.util.{Failure, Success, Try}
+
+/** Loads and processes many Tiff and ND2 stacks at once, e.g. every stack of an overnight run, on the pool the whole
+	* project shares, `GridTraversal.pool`, so that decoding strips and traversing frames within each file take their
+	* threads from the same pool rather than multiplying them. Each file holds back its estimated decoded size from a
+	* shared memory budget while it is being loaded and processed, so how many files are in flight at once is set by
+	* their size as well as by `parallelism`. A file larger than the whole budget is still processed, on its own.
+	* @author James R. Thompson, D.Phil
+	* @constructor The memory allowed for stacks in flight, and the most files to work on at once.
+	*/
+class BatchIngest(val budgetBytes: Long = BatchIngest.defaultBudget,
+		val parallelism: Int = Runtime.getRuntime.availableProcessors) {
+	require(budgetBytes >= BatchIngest.unit, "budgetBytes must be at least 1 MB")
+	require(parallelism >= 1, "parallelism must be >= 1")
+
+	private val permits = math.min(budgetBytes / BatchIngest.unit, Int.MaxValue).toInt
+
+	/** Loads each of `files` and hands its stack to `process`, several files at once.
+		* @return The result of `process` for each file, in the order of `files`. A file that could not be loaded or
+		* processed gives a `Failure`, and does not stop the others, even if it ran out of memory. A file's size is
+		* estimated under a single megabyte of the budget before the rest of its share is held back, as reading its
+		* IFDs, or its `TiffIndex`, takes memory too. */
+	def run[R](files: Seq[File])(process: (File, TiffStack[Int]) => R) : IndexedSeq[(File, Try[R])] = {
+		val all = files.toIndexedSeq
+		val results = new Array[Try[R]](all.length)
+		val budget = new Semaphore(permits, true)
+		val next = new AtomicInteger
+		// parallelism workers, each taking the next file not yet taken until none are left
+		val workers = for(_ <- 0 until math.min(parallelism, all.length)) yield GridTraversal.pool.submit(new Runnable {
+			def run = {
+				var i = next.getAndIncrement
+				while(i < all.length) {
+					results(i) = ingest(all(i), budget, process)
+					i = next.getAndIncrement
+				}
+			}
+		})
+		workers.foreach(_.get)
+		all.zip(results)
+	}
+
+	private def ingest[R](file: File, budget: Semaphore, process: (File, TiffStack[Int]) => R) : Try[R] = {
+		try {
+			BatchIngest.acquire(budget, 1)
+			val estimate = try BatchIngest.estimateBytes(file) finally budget.release(1)
+			val need = math.max(1L, math.min(estimate / BatchIngest.unit, permits.toLong)).toInt
+			BatchIngest.acquire(budget, need)
+			try Success(process(file, BatchIngest.load(file))) finally budget.release(need)
+		} catch {
+			// fatal errors too, e.g. OutOfMemoryError, which Try would let escape and take the other files down with it
+			case e: Throwable => Failure(e)
+		}
+	}
+}
+
+object BatchIngest {
+
+	/** Takes `n` permits of `budget`, letting the pool start another thread while this one waits, so that files
+		* waiting for memory don't hold up the work of the files that have it. */
+	private def acquire(budget: Semaphore, n: Int) : Unit = ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker {
+		private var acquired = false
+		def isReleasable = acquired || { acquired = budget.tryAcquire(n, 0, TimeUnit.SECONDS); acquired }
+		def block = {
+			if(!acquired) {
+				budget.acquire(n)
+				acquired = true
+			}
+			true
+		}
+	})
+
+	/** Memory is budgeted in whole megabytes. */
+	private val unit = 1024L * 1024
+
+	val defaultBudget = Runtime.getRuntime.maxMemory / 2
+
+	/** @return The Tiff and ND2 files in `dir` whose names match `glob`, e.g. `"run3_*.{tif,nd2}"`, sorted by name. */
+	def files(dir: File, glob: String = "*.{tif,tiff,nd2}") : IndexedSeq[File] = {
+		val stream = Files.newDirectoryStream(dir.toPath, glob)
+		try stream.iterator.toVector.map((p: Path) => p.toFile).filter(f => f.isFile && isStack(f)).sortBy(_.getName)
+		finally stream.close
+	}
+
+	private def isStack(file: File) : Boolean = isND2(file) || isTIFF(file)
+
+	private def isND2(file: File) : Boolean = file.getName.toLowerCase.endsWith(".nd2")
+
+	private def isTIFF(file: File) : Boolean = {
+		val name = file.getName.toLowerCase
+		name.endsWith(".tif") || name.endsWith(".tiff")
+	}
+
+	/** @return The memory taken up by the decoded frames of `file`. Tiff frames are sized from their `FileInfo`s, which
+		* a `TiffIndex` provides without parsing IFDs; ND2 files are taken to be about as large decoded as on disk. */
+	def estimateBytes(file: File) : Long =
+		if(isND2(file)) file.length
+		else ImageLoad.tiffFrames(file).map(fi => fi.width.toLong * fi.height * math.max(fi.nImages, 1) * fi.getBytesPerPixel).sum
+
+	/** Loads `file` on the calling thread; the pool already runs one file per worker. */
+	private def load(file: File) : TiffStack[Int] =
+		if(isND2(file)) ImageLoad.loadND2(file, 0 until Int.MaxValue, 1)
+		else ImageLoad.loadTIFF(file)
+}
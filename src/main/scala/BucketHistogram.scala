@@ -0,0 +1,136 @@
+package shalene
+
+import java.util.concurrent.{ForkJoinTask, RecursiveTask}
+
+/** A histogram of integer pixels, counting how many there are of each value from `lo` up, so that it is built in one
+	* pass over the pixels, and answers exact percentiles from the counts without sorting. Histograms of different frames
+	* `merge` into one of all of them, which is how `BucketHistogram.of` builds one of a whole stack in parallel.
+	* @author James R. Thompson, D.Phil
+	* @constructor Use `BucketHistogram.of`; `counts(v)` pixels have the value `lo + v`.
+	*/
+final class BucketHistogram private (val lo: Int, private val counts: Array[Long]) {
+
+	/** Pixels counted. */
+	val count : Long = counts.sum
+	require(count > 0, "values cannot be empty in histogram")
+
+	/** @return How many pixels have the value `v`. */
+	def apply(v: Int) : Long = if(v < lo || v - lo >= counts.length) 0L else counts(v - lo)
+
+	val min : Int = lo + counts.indexWhere(_ > 0)
+	val max : Int = lo + counts.lastIndexWhere(_ > 0)
+
+	/** @return The value at percentile `p` in [0.0, 1.0], by the nearest rank definition `Histogram` uses. */
+	def percentile(p: Double) : Int = {
+		require(p >= 0.0 && p <= 1.0, "Not a valid percentile: " + p)
+		if(p == 1.0) max
+		else {
+			val rank = math.min(math.round(p * count), count - 1)
+			var seen = 0L
+			var v = min - lo
+			while(seen + counts(v) <= rank) {
+				seen += counts(v)
+				v += 1
+			}
+			lo + v
+		}
+	}
+
+	/** @return The histogram of the pixels of both histograms, which must together span fewer than
+		* `BucketHistogram.maxBins` values. */
+	def merge(that: BucketHistogram) : BucketHistogram = {
+		val from = math.min(min, that.min)
+		val until = math.max(max, that.max)
+		BucketHistogram.checkSpan(from, until)
+		val merged = new Array[Long](until - from + 1)
+		add(merged, from)
+		that.add(merged, from)
+		new BucketHistogram(from, merged)
+	}
+
+	/** Adds the counts from `min` to `max` into `merged`, which starts at the value `from`. */
+	private def add(merged: Array[Long], from: Int) : Unit = {
+		val shift = lo - from
+		var i = min - lo
+		val last = max - lo
+		while(i <= last) { merged(i + shift) += counts(i); i += 1 }
+	}
+
+	override def toString : String = "BucketHistogram(" + count + " pixels, " + min + " to " + max + ")"
+}
+
+object BucketHistogram {
+
+	/** Most values a histogram may count, so that `Int` pixels spread over a wider range, e.g. raw float bits, fail
+		* rather than take gigabytes; use `Histogram` for those. */
+	val maxBins = 1 << 24
+
+	/** @return The histogram of the pixels of an 8- or 16-bit frame, counted in 256 or 65,536 buckets. Int frames are
+		* counted over their own range; float frames can't be, so use `Histogram` for them. */
+	def of(frame: PackedPixels) : BucketHistogram = frame match {
+		case BytePixels(p) =>
+			val counts = new Array[Long](256)
+			var i = 0
+			while(i < p.length) { counts(p(i) & 0xff) += 1; i += 1 }
+			new BucketHistogram(0, counts)
+		case ShortPixels(p) =>
+			val counts = new Array[Long](65536)
+			var i = 0
+			while(i < p.length) { counts(p(i) & 0xffff) += 1; i += 1 }
+			new BucketHistogram(0, counts)
+		case IntPixels(p) =>
+			var min = Int.MaxValue
+			var max = Int.MinValue
+			var i = 0
+			while(i < p.length) {
+				if(p(i) < min) min = p(i)
+				if(p(i) > max) max = p(i)
+				i += 1
+			}
+			count(p, min, max)
+		case _ =>
+			throw new IllegalArgumentException("Frames of " + frame.getClass.getSimpleName + " can't be bucketed; use Histogram")
+	}
+
+	/** @return The histogram of the pixels of `img`, counted over the range its cached statistics give. */
+	def of(img: NumericImage[Int]) : BucketHistogram = count(img.getBuffer, img.min, img.max)
+
+	def of(img: ShortImage) : BucketHistogram = of(ShortPixels(img.buffer))
+
+	def of(img: IntImage) : BucketHistogram = count(img.buffer, img.min, img.max)
+
+	/** @return The histogram of every pixel of every frame, e.g. for percentiles to auto-contrast or threshold a whole
+		* stack by. Frames are counted in parallel on the pool `GridTraversal` shares, each on its own, and their
+		* histograms merged, so no more than one frame per worker need be read at once. */
+	def of(frames: IndexedSeq[NumericImage[Int]]) : BucketHistogram = {
+		require(frames.length > 0, "frames cannot be empty in histogram")
+		val task = new Frames(frames, 0, frames.length)
+		if(ForkJoinTask.getPool eq GridTraversal.pool) task.invoke else GridTraversal.pool.invoke(task)
+	}
+
+	def of(stack: TiffStack[Int]) : BucketHistogram = of(stack.stack)
+
+	private class Frames(frames: IndexedSeq[NumericImage[Int]], from: Int, until: Int) extends RecursiveTask[BucketHistogram] {
+		protected def compute : BucketHistogram = {
+			if(until - from == 1) of(frames(from))
+			else {
+				val mid = (from + until) >>> 1
+				val right = new Frames(frames, mid, until)
+				right.fork
+				val left = new Frames(frames, from, mid).compute
+				left.merge(right.join)
+			}
+		}
+	}
+
+	private def checkSpan(min: Int, max: Int) : Unit =
+		require(max.toLong - min < maxBins, "Values from " + min + " to " + max + " span too many buckets; use Histogram")
+
+	private def count(p: Array[Int], min: Int, max: Int) : BucketHistogram = {
+		checkSpan(min, max)
+		val counts = new Array[Long](max - min + 1)
+		var i = 0
+		while(i < p.length) { counts(p(i) - min) += 1; i += 1 }
+		new BucketHistogram(min, counts)
+	}
+}
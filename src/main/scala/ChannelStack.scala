@@ -0,0 +1,30 @@
+package shalene
+
+/** The channels of a multi-channel stack, e.g. a membrane and a lumen dye imaged together. Each channel is a
+	* `TiffStack` of its own, and all of them share the frame size and number of frames.
+	* @author James R. Thompson, D.Phil
+	* @constructor The number in the file of each channel that was loaded, and its stack.
+	*/
+class ChannelStack[T](val channelNumbers: IndexedSeq[Int], val channels: IndexedSeq[TiffStack[T]]) {
+	require(channels.nonEmpty, "ChannelStack must have at least 1 channel")
+	require(channelNumbers.length == channels.length, "Every channel needs a number")
+	require(channels.forall(s => s.getNumFrames == channels(0).getNumFrames), "Every channel needs the same number of frames")
+
+	val width = channels(0).width
+	val height = channels(0).height
+
+	def getNumChannels : Int = channels.length
+
+	def getNumFrames : Int = channels(0).getNumFrames
+
+	/** @param channel The number of the channel in the file, as given at load time.
+		* @return The stack of that channel. */
+	def channel(channel: Int) : TiffStack[T] = {
+		val i = channelNumbers.indexOf(channel)
+		if(i < 0) throw new NoSuchElementException("Channel " + channel + " was not loaded; loaded " + channelNumbers.mkString(", "))
+		channels(i)
+	}
+
+	override def toString : String = width.toString + " x " + height.toString + ", number of frames = " + getNumFrames.toString +
+		", channels = " + channelNumbers.mkString(", ")
+}
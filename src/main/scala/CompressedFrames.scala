@@ -0,0 +1,195 @@
+package shalene
+
+import java.io.ByteArrayOutputStream
+import java.util.{LinkedHashMap, Map => JMap}
+import java.util.zip.{DataFormatException, Deflater, Inflater}
+
+/** A stack of frames held in memory deflated, so that several experiments can be kept open at once. Fluorescence
+	* frames shrink 3-5x. Each frame is inflated when it is asked for, and the `hot` frames asked for last are kept
+	* inflated, so that e.g. stepping back and forth with the frame slider does not inflate the same frames again.
+	* @author James R. Thompson, D.Phil
+	* @constructor The frame size, the deflated frames as given by `CompressedFrames.compress`, and how many frames
+	* to keep inflated.
+	*/
+class CompressedFrames(val width: Int, val height: Int, frames: IndexedSeq[CompressedFrame],
+		hot: Int = CompressedFrames.defaultHot) extends LazyFrameSeq[Int] {
+	require(hot >= 0, "hot must be >= 0")
+
+	private val recent = new LinkedHashMap[Int, NumericImage[Int]](16, 0.75f, true) {
+		override def removeEldestEntry(eldest: JMap.Entry[Int, NumericImage[Int]]) = size > hot
+	}
+
+	def length = frames.length
+
+	protected def frame(index: Int) : NumericImage[Int] = {
+		val cached = recent.synchronized(recent.get(index))
+		if(cached != null) cached
+		else {
+			val img = new NumericImage[Int](width, height, CompressedFrames.decompress(frames(index)).widen)
+			recent.synchronized(recent.put(index, img))
+			img
+		}
+	}
+
+	/** @return The pixels of the frame at `index`, at their native bit depth. */
+	def packed(index: Int) : PackedPixels = CompressedFrames.decompress(frames(index))
+
+	/** Bytes taken up by the deflated frames. */
+	def bytes : Long = frames.map(_.data.length.toLong).sum
+
+	/** Bytes the frames would take up inflated, at their native bit depth. */
+	def rawBytes : Long = frames.map(f => f.length.toLong * f.sampleBytes).sum
+}
+
+/** One deflated frame `width` pixels wide: `length` samples of `sampleBytes` bytes each, of the kind of `PackedPixels`
+	* given by `kind`. */
+class CompressedFrame private[shalene] (val kind: Int, val width: Int, val length: Int, val sampleBytes: Int,
+	val data: Array[Byte])
+
+object CompressedFrames {
+
+	val defaultHot = 4
+
+	private val BYTE = 0
+	private val SHORT = 1
+	private val FLOAT = 2
+	private val INT = 3
+
+	/** One Deflater and Inflater per thread, reset after each frame instead of being created for it, and the buffer
+		* the Deflater writes into. */
+	private val deflaters = new ThreadLocal[Deflater] { override def initialValue = new Deflater(Deflater.BEST_SPEED) }
+	private val inflaters = new ThreadLocal[Inflater] { override def initialValue = new Inflater }
+	private val deflated = new ThreadLocal[Array[Byte]] { override def initialValue = new Array[Byte](64 * 1024) }
+
+	/** Deflates every frame, e.g. of a `PackedFrames`, one at a time. */
+	def apply(width: Int, height: Int, frames: IndexedSeq[PackedPixels], hot: Int) : CompressedFrames =
+		new CompressedFrames(width, height, frames.map(p => compress(width, p)), hot)
+
+	/** Deflates a frame `width` pixels wide. The samples of integer frames are stored as the difference from the one
+		* to their left, as the Tiff predictor does, and the bytes of every sample are split into planes, most
+		* significant first, so that deflate sees long runs of the slowly varying high bytes. */
+	def compress(width: Int, pixels: PackedPixels) : CompressedFrame = {
+		val (kind, sampleBytes, samples) = pixels match {
+			case BytePixels(p) => (BYTE, 1, differences(width, widen(p)))
+			case ShortPixels(p) => (SHORT, 2, differences(width, widen(p)))
+			case FloatPixels(p) => (FLOAT, 4, floatBits(p))
+			case IntPixels(p) => (INT, 4, p)
+		}
+		val n = pixels.length
+		val planes = new Array[Byte](n * sampleBytes)
+		for(b <- 0 until sampleBytes) {
+			val shift = (sampleBytes - 1 - b) * 8
+			val base = b * n
+			var i = 0
+			while(i < n) { planes(base + i) = (samples(i) >>> shift).toByte; i += 1 }
+		}
+		new CompressedFrame(kind, width, n, sampleBytes, deflate(planes))
+	}
+
+	/** @return The pixels of `frame`, inflated. */
+	def decompress(frame: CompressedFrame) : PackedPixels = {
+		val n = frame.length
+		val planes = inflate(frame.data, n * frame.sampleBytes)
+		val samples = new Array[Int](n)
+		for(b <- 0 until frame.sampleBytes) {
+			val shift = (frame.sampleBytes - 1 - b) * 8
+			val base = b * n
+			var i = 0
+			while(i < n) { samples(i) |= (planes(base + i) & 0xff) << shift; i += 1 }
+		}
+		frame.kind match {
+			case BYTE => BytePixels(toBytes(sums(frame.width, samples)))
+			case SHORT => ShortPixels(toShorts(sums(frame.width, samples)))
+			case FLOAT => FloatPixels(toFloats(samples))
+			case INT => IntPixels(samples)
+		}
+	}
+
+	/** @return Each sample minus the one to its left, with the first of each row kept as it is. */
+	private def differences(width: Int, samples: Array[Int]) : Array[Int] = {
+		var i = samples.length - 1
+		while(i > 0) {
+			if(i % width != 0) samples(i) -= samples(i - 1)
+			i -= 1
+		}
+		samples
+	}
+
+	private def widen(p: Array[Byte]) : Array[Int] = {
+		val out = new Array[Int](p.length)
+		var i = 0
+		while(i < out.length) { out(i) = p(i); i += 1 }
+		out
+	}
+
+	private def widen(p: Array[Short]) : Array[Int] = {
+		val out = new Array[Int](p.length)
+		var i = 0
+		while(i < out.length) { out(i) = p(i); i += 1 }
+		out
+	}
+
+	private def floatBits(p: Array[Float]) : Array[Int] = {
+		val out = new Array[Int](p.length)
+		var i = 0
+		while(i < out.length) { out(i) = java.lang.Float.floatToRawIntBits(p(i)); i += 1 }
+		out
+	}
+
+	private def toBytes(samples: Array[Int]) : Array[Byte] = {
+		val out = new Array[Byte](samples.length)
+		var i = 0
+		while(i < out.length) { out(i) = samples(i).toByte; i += 1 }
+		out
+	}
+
+	private def toShorts(samples: Array[Int]) : Array[Short] = {
+		val out = new Array[Short](samples.length)
+		var i = 0
+		while(i < out.length) { out(i) = samples(i).toShort; i += 1 }
+		out
+	}
+
+	private def toFloats(samples: Array[Int]) : Array[Float] = {
+		val out = new Array[Float](samples.length)
+		var i = 0
+		while(i < out.length) { out(i) = java.lang.Float.intBitsToFloat(samples(i)); i += 1 }
+		out
+	}
+
+	/** Undoes `differences` in place. */
+	private def sums(width: Int, samples: Array[Int]) : Array[Int] = {
+		var i = 1
+		while(i < samples.length) {
+			if(i % width != 0) samples(i) += samples(i - 1)
+			i += 1
+		}
+		samples
+	}
+
+	private def deflate(bytes: Array[Byte]) : Array[Byte] = {
+		val deflater = deflaters.get
+		deflater.reset
+		deflater.setInput(bytes)
+		deflater.finish
+		val out = new ByteArrayOutputStream(bytes.length / 3 + 64)
+		val buffer = deflated.get
+		while(!deflater.finished) out.write(buffer, 0, deflater.deflate(buffer))
+		out.toByteArray
+	}
+
+	private def inflate(bytes: Array[Byte], length: Int) : Array[Byte] = {
+		val inflater = inflaters.get
+		inflater.reset
+		inflater.setInput(bytes)
+		val out = new Array[Byte](length)
+		var n = 0
+		while(n < length && !inflater.finished) {
+			val r = inflater.inflate(out, n, length - n)
+			if(r == 0 && (inflater.needsInput || inflater.needsDictionary))
+				throw new DataFormatException("Deflated frame ended early")
+			n += r
+		}
+		out
+	}
+}
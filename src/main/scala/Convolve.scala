@@ -44,6 +44,53 @@ class SquareMask[N](side: Int, data: Array[N])(implicit ev: Numeric[N]) extends
   }
 }
 
+/** A square mask of `Double` weights applied with primitive loops, so that convolving a `DoubleImage` allocates
+  * nothing but the output. Pixels past the edge count as 0, as in `SquareMask.evaluate`. */
+class DoubleMask(val side: Int, val data: Array[Double]) {
+  require(data.length == side * side, "mask must hold side x side weights")
+  private val mid = side / 2
+
+  def convolve(img: DoubleImage): DoubleImage = {
+    val w = img.width
+    val h = img.height
+    val in = img.buffer
+    val out = new Array[Double](w * h)
+    GridTraversal.forEachBand(0, h, w)((from, until) => convolveRows(in, out, w, h, from, until))
+    new DoubleImage(w, h, out)
+  }
+
+  private def convolveRows(in: Array[Double], out: Array[Double], w: Int, h: Int, from: Int, until: Int): Unit = {
+    var y = from
+    while (y < until) {
+      var x = 0
+      while (x < w) {
+        var acc = 0.0
+        var j = 0
+        while (j < side) {
+          val curY = y + j - mid
+          if (curY >= 0 && curY < h) {
+            var i = 0
+            while (i < side) {
+              val curX = x + i - mid
+              if (curX >= 0 && curX < w) acc += in(curY * w + curX) * data(j * side + i)
+              i += 1
+            }
+          }
+          j += 1
+        }
+        out(y * w + x) = acc
+        x += 1
+      }
+      y += 1
+    }
+  }
+}
+
+object DoubleMask {
+  def apply(mask: SquareMask[Double], side: Int): DoubleMask =
+    new DoubleMask(side, Array.tabulate(side * side)(k => mask.getData(k % side, k / side)))
+}
+
 case class SquareKernel(side: Int) extends GridTraversal {
   def computeMask[N](f: (Int, Int) => N)(implicit ev: Numeric[N], cm: ClassTag[N]): SquareMask[N] = {
     val data = mapGrid(side, side)(f) 
@@ -85,6 +132,7 @@ trait GaussConvolution[Px[Double] <: Pixel[Px, Double]] extends Convolution[Px,
   }
   def widthOf(img: NumericImage[Double]) = img.width
   def heightOf(img: NumericImage[Double]) = img.height
+  lazy val doubleMask = DoubleMask(newMask, kernel.side)
 }
 
 // Implementation of grayscale gaussian convolution
@@ -92,6 +140,8 @@ class GrayscaleGaussConvolution(val sigma: Double, val kernel: SquareKernel) ext
   def ops = implicitly[VectorOps[SinglePixel, Double]]
   def newResult(img: NumericImage[Double]) = new NumericImage(img.width, img.height)
   def update(x: Int, y: Int, agg: SinglePixel[Double], img: NumericImage[Double]) = img.set(x, y, agg.value.toDouble)
+  override def convolve(img: NumericImage[Double]) = convolve(new DoubleImage(img.width, img.height, img.getBuffer)).toNumericImage
+  def convolve(img: DoubleImage): DoubleImage = doubleMask.convolve(img)
 }
 
 // Main Sobel style convolution
@@ -101,6 +151,10 @@ trait SobelOperator extends Convolution[SinglePixel, Double, GenericImage[Double
   def update(x: Int, y: Int, agg: SinglePixel[Double], img: GenericImage[Double]) = img.set(x, y, agg.value.toDouble)
   def widthOf(img: GenericImage[Double]) = img.width
   def heightOf(img: GenericImage[Double]) = img.height
+  private lazy val doubleMask = DoubleMask(newMask, kernel.side)
+  override def convolve(img: NumericImage[Double]) =
+    new GenericImage[Double](img.width, img.height, convolve(new DoubleImage(img.width, img.height, img.getBuffer)).buffer)
+  def convolve(img: DoubleImage): DoubleImage = doubleMask.convolve(img)
 }
 
 // Implementation of x-direction Sobel gradient convolution
@@ -13,14 +13,26 @@ case class PolarLocation(val x:Double, val y:Double) {
 
 class EdgeFinder(img: Array[Double], width: Int, height: Int) {
 
+  def this(img: DoubleImage) = this(img.buffer, img.width, img.height)
+
+  /** @return The intensity-weighted centroid of the image. */
   def findCentre : (Double, Double) = {
-    implicit def conv2DTo1D(loc:(Int,Int)) : Int = loc._2 * width + loc._1
-    def moment(in:IndexedSeq[((Int,Int), Double)]) = {
-      val d = in.map(_._2).sum
-      (in.map(v => v._1._1 * v._2).sum / d, in.map(v => v._1._2 * v._2).sum / d)
+    var d = 0.0
+    var mx = 0.0
+    var my = 0.0
+    var y = 0
+    while(y < height) {
+      var x = 0
+      while(x < width) {
+        val v = img(y * width + x)
+        d += v
+        mx += x * v
+        my += y * v
+        x += 1
+      }
+      y += 1
     }
-    val pixelMap = for(x <- 0 until width; y <- 0 until height) yield ((x,y), img.apply((x,y)))
-    moment(pixelMap)
+    (mx / d, my / d)
   }
 
  	def convImgToPolar(angleLines:Int, thresholdPercent: Double, radiusThreshold: Int) : List[(List[Double], PolarLocation)] = {
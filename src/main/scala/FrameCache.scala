@@ -0,0 +1,127 @@
+package shalene
+
+import java.lang.ref.{ReferenceQueue, SoftReference}
+import java.util.{HashMap, LinkedHashMap}
+import java.util.concurrent.atomic.AtomicLong
+
+/** Keeps the frames of a lazy stack, e.g. `MappedTiffFrames` or `CompressedFrames`, that were asked for last, up to
+	* `budgetBytes` of them. When the budget is exceeded the least recently used frames are evicted, but only down to
+	* soft references, so that they can still be handed out until the garbage collector needs the memory back.
+	* Scrubbing back and forth through a stack so mostly hits frames already decoded, without holding the whole stack.
+	* @author James R. Thompson, D.Phil
+	* @constructor The frames to cache, and the memory allowed for the frames kept.
+	*/
+class FrameCache[T](source: IndexedSeq[NumericImage[T]], val budgetBytes: Long = FrameCache.defaultBudget)
+		extends LazyFrameSeq[T] {
+	require(budgetBytes >= 0, "budgetBytes must be >= 0")
+
+	private val resident = new LinkedHashMap[Int, NumericImage[T]](16, 0.75f, true)
+	private val evicted = new HashMap[Int, SoftFrame]
+	private val collected = new ReferenceQueue[NumericImage[T]]
+	private var bytes = 0L
+
+	private val hitCount = new AtomicLong
+	private val softHitCount = new AtomicLong
+	private val missCount = new AtomicLong
+	private val evictionCount = new AtomicLong
+
+	private class SoftFrame(val index: Int, img: NumericImage[T]) extends SoftReference[NumericImage[T]](img, collected)
+
+	def length = source.length
+
+	protected def frame(index: Int) : NumericImage[T] = {
+		resident.synchronized {
+			val img = resident.get(index)
+			if(img != null) {
+				hitCount.incrementAndGet
+				return img
+			}
+			val soft = evicted.remove(index)
+			val kept = if(soft == null) null else soft.get
+			if(kept != null) {
+				softHitCount.incrementAndGet
+				admit(index, kept)
+				return kept
+			}
+		}
+		missCount.incrementAndGet
+		val img = source(index)
+		resident.synchronized(if(!resident.containsKey(index)) admit(index, img))
+		img
+	}
+
+	override def region(index: Int, x: Int, y: Int, w: Int, h: Int) : NumericImage[T] = {
+		if(index < 0 || index >= length) throw new IndexOutOfBoundsException(index.toString)
+		val img = resident.synchronized(resident.get(index))
+		if(img != null) img.crop(x, y, w, h)
+		else source match {
+			case frames: LazyFrameSeq[T] => frames.region(index, x, y, w, h)
+			case _ => apply(index).crop(x, y, w, h)
+		}
+	}
+
+	/** Adds `img` as the most recently used frame, then evicts the least recently used ones until the frames kept fit
+		* in the budget. A frame larger than the whole budget is still kept, on its own. */
+	private def admit(index: Int, img: NumericImage[T]) = {
+		resident.put(index, img)
+		bytes += FramePrefetcher.frameBytes(img)
+		val eldest = resident.entrySet.iterator
+		while(bytes > budgetBytes && resident.size > 1) {
+			val e = eldest.next
+			eldest.remove
+			bytes -= FramePrefetcher.frameBytes(e.getValue)
+			evicted.put(e.getKey, new SoftFrame(e.getKey, e.getValue))
+			evictionCount.incrementAndGet
+		}
+		purge
+	}
+
+	/** Forgets evicted frames that the garbage collector has taken back. */
+	private def purge = {
+		var ref = collected.poll
+		while(ref != null) {
+			val soft = ref.asInstanceOf[SoftFrame]
+			if(evicted.get(soft.index) eq soft) evicted.remove(soft.index)
+			ref = collected.poll
+		}
+	}
+
+	/** Drops every frame kept, without resetting the counters. */
+	def clear = resident.synchronized {
+		resident.clear
+		evicted.clear
+		bytes = 0L
+	}
+
+	/** Drops every frame kept and closes `source`. */
+	override def close = {
+		clear
+		source match {
+			case frames: LazyFrameSeq[T] => frames.close
+			case _ =>
+		}
+	}
+
+	/** Frames handed out that were kept. */
+	def hits : Long = hitCount.get
+
+	/** Frames handed out that had been evicted, but not yet taken back by the garbage collector. */
+	def softHits : Long = softHitCount.get
+
+	/** Frames that had to be read from `source`. */
+	def misses : Long = missCount.get
+
+	/** Frames evicted to keep within the budget. */
+	def evictions : Long = evictionCount.get
+
+	/** Bytes taken up by the frames kept, not counting evicted ones. */
+	def residentBytes : Long = resident.synchronized(bytes)
+
+	override def toString : String = "FrameCache(" + length + " frames, " + residentBytes + "/" + budgetBytes + " bytes, hits = " +
+		hits + ", soft hits = " + softHits + ", misses = " + misses + ", evictions = " + evictions + ")"
+}
+
+object FrameCache {
+
+	val defaultBudget = Runtime.getRuntime.maxMemory / 4
+}
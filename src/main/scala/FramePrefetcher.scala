@@ -0,0 +1,64 @@
+package shalene
+
+import java.util.ArrayDeque
+import java.util.concurrent.{Callable, ExecutionException, Future}
+
+/** Walks the frames of a stack in order, decoding the next few on the shared `GridTraversal.pool` while the current
+	* one is being worked on, so that disk reads and decompression overlap with analysis rather than adding to it.
+	* At most `depth` frames are decoded ahead, fewer if that many would take more than `maxBytes`.
+	* Call `close` if the frames are not all read, to stop decoding ahead.
+	* @author James R. Thompson, D.Phil
+	* @constructor The frames to walk, e.g. `TiffStack.stack`, how many to decode ahead and the memory allowed for them.
+	*/
+class FramePrefetcher[T](frames: IndexedSeq[NumericImage[T]], depth: Int = FramePrefetcher.defaultDepth,
+		maxBytes: Long = FramePrefetcher.defaultMaxBytes) extends Iterator[NumericImage[T]] {
+	require(depth >= 1, "depth must be >= 1")
+
+	private val pending = new ArrayDeque[Future[NumericImage[T]]]
+	private var position = 0
+	private var submitted = 0
+	// only the first frame is decoded until its size shows how many fit in maxBytes
+	private var window = 1
+
+	def hasNext = position < frames.length
+
+	def next : NumericImage[T] = {
+		if(!hasNext) throw new NoSuchElementException("no more frames")
+		fill
+		val img = try pending.poll.get catch {
+			case e: ExecutionException => close; throw e.getCause
+		}
+		if(position == 0) window = math.max(1L, math.min(depth.toLong, maxBytes / FramePrefetcher.frameBytes(img))).toInt
+		position += 1
+		if(hasNext) fill else close
+		img
+	}
+
+	/** Queues frames up to `window` ahead of the one to be handed out next. */
+	private def fill = while(submitted < frames.length && submitted - position < window) {
+		val index = submitted
+		pending.add(GridTraversal.pool.submit(new Callable[NumericImage[T]] { def call = frames(index) }))
+		submitted += 1
+	}
+
+	/** Stops decoding ahead and drops any frames not yet handed out. */
+	def close = while(!pending.isEmpty) pending.poll.cancel(true)
+}
+
+object FramePrefetcher {
+
+	val defaultDepth = 4
+	val defaultMaxBytes = 256L * 1024 * 1024
+
+	/** Memory taken up by the pixels of a decoded frame. */
+	def frameBytes(img: NumericImage[_]) : Long = {
+		val bytesPerPixel = (img.getBuffer: AnyRef) match {
+			case _: Array[Byte] => 1
+			case _: Array[Short] => 2
+			case _: Array[Long] => 8
+			case _: Array[Double] => 8
+			case _ => 4
+		}
+		img.width.toLong * img.height * bytesPerPixel
+	}
+}
@@ -34,6 +34,23 @@ class GenericImage[BitDepth : Manifest](val width: Int, val height: Int, private
     newImg
   }
 
+  /** combine, map and mapWithIndex traversing the image in parallel row bands; f must be safe to call for
+    * different pixels at once. */
+  def parCombine[ThatBitDepth, ResBitDepth: Manifest](that: GenericImage[ThatBitDepth])(f: (BitDepth, ThatBitDepth) => ResBitDepth) : GenericImage[ResBitDepth] = {
+    assert(width == that.width && height == that.height)
+    val newImg = new GenericImage[ResBitDepth](width, height)
+    parTraverseGrid(width, height)((i, j) => newImg.set(i, j, f(get(i, j), that.get(i, j))))
+    newImg
+  }
+
+  def parMap[ToBitDepth: Manifest](f: BitDepth => ToBitDepth): GenericImage[ToBitDepth] = parMapWithIndex((_, _, e) => f(e))
+
+  def parMapWithIndex[ToBitDepth: Manifest](f: (Int, Int, BitDepth) => ToBitDepth): GenericImage[ToBitDepth] = {
+    val newImg = new GenericImage[ToBitDepth](width, height)
+    parTraverseGrid(width, height)((i, j) => newImg.set(i, j, f(i, j, get(i, j))))
+    newImg
+  }
+
   def max[B >: BitDepth](implicit cmp: Ordering[B]): BitDepth = {
     if (isEmpty) 
       throw new UnsupportedOperationException("Image is empty")
@@ -65,7 +82,7 @@ class GenericImage[BitDepth : Manifest](val width: Int, val height: Int, private
 
   def toArray[SuperBitDepth >: BitDepth : Manifest]: Array[SuperBitDepth] = buffer.map(_.asInstanceOf[SuperBitDepth]).toArray
 
-  def histogram[SuperBitDepth >: BitDepth : Manifest](implicit hnum: Numeric[SuperBitDepth]) : Histogram[SuperBitDepth] = new Histogram[SuperBitDepth](toArray)
+  def histogram[SuperBitDepth >: BitDepth : Manifest](implicit hnum: Numeric[SuperBitDepth]) : Histogram[SuperBitDepth] = new Histogram[SuperBitDepth](toArray, false)
 
   /**
    * Returns a slice of this image from (xUpper, yUpper) to (xLower, yLower)
@@ -1,6 +1,7 @@
 package shalene
 
 import collection.mutable.ArrayBuffer
+import java.util.concurrent.{ForkJoinPool, ForkJoinTask, RecursiveAction}
 
 trait GridTraversal {
   /**
@@ -30,6 +31,18 @@ trait GridTraversal {
     }
   }
 
+  /**
+   * Parallel traverseGrid: the rows are split into bands that are traversed on the shared
+   * fork/join pool. Grids of fewer than GridTraversal.parallelThreshold pixels are traversed
+   * sequentially. f may be called for different pixels at once, so it must only write to
+   * state of its own pixel.
+   */
+  final def parTraverseGrid[T](x: Int, y: Int)(f: (Int, Int) => T): Unit =
+    parTraverseGrid(0, 0, x, y)(f)
+
+  final def parTraverseGrid[T](xStart: Int, yStart: Int, xFinish: Int, yFinish: Int)(f: (Int, Int) => T): Unit =
+    GridTraversal.forEachBand(yStart, yFinish, xFinish - xStart)((from, until) => traverseGrid(xStart, from, xFinish, until)(f))
+
   /**
    * Drop in replacement for
    * val elems = for (j <- 0 until y; i <- 0 until x) yield { 
@@ -58,3 +71,42 @@ trait GridTraversal {
     buf
   }
 }
+
+object GridTraversal {
+
+  /** The one pool the project's parallel work runs on: traversals, strip and tile decoding, ND2 reading,
+   * frame prefetching and batch ingestion. */
+  val pool = new ForkJoinPool
+
+  /** Fewest pixels worth splitting into bands; the shalene.parallelThreshold system property overrides it. */
+  val parallelThreshold: Int = Integer.getInteger("shalene.parallelThreshold", 64 * 1024)
+
+  /** Rows of a band are never split further once the band holds fewer pixels than this. */
+  private val bandPixels = 16 * 1024
+
+  /**
+   * Calls band(from, until) for bands of the rows yStart until yFinish, each rowWidth pixels
+   * wide, splitting the rows in halves on the shared pool until the bands are small. Below
+   * parallelThreshold pixels the whole range is one band, on the calling thread.
+   */
+  def forEachBand(yStart: Int, yFinish: Int, rowWidth: Int)(band: (Int, Int) => Unit): Unit = {
+    val rows = yFinish - yStart
+    if (rows <= 1 || rows.toLong * rowWidth < parallelThreshold) {
+      if (rows > 0) band(yStart, yFinish)
+    } else {
+      val minRows = math.max(1, bandPixels / math.max(rowWidth, 1))
+      val task = new Bands(yStart, yFinish, minRows, band)
+      if (ForkJoinTask.getPool eq pool) task.invoke else pool.invoke(task)
+    }
+  }
+
+  private class Bands(from: Int, until: Int, minRows: Int, band: (Int, Int) => Unit) extends RecursiveAction {
+    protected def compute(): Unit = {
+      if (until - from <= minRows) band(from, until)
+      else {
+        val mid = (from + until) >>> 1
+        ForkJoinTask.invokeAll(new Bands(from, mid, minRows, band), new Bands(mid, until, minRows, band))
+      }
+    }
+  }
+}
@@ -1,26 +1,123 @@
 package shalene
 
-/** an immutable histogram */
-class Histogram[N](values: Array[N])(implicit ev: Numeric[N]) {
+/** an immutable histogram, answering percentiles by quickselect rather than sorting every value.
+ *  Integer pixels are counted faster still by BucketHistogram. */
+class Histogram[N] private[shalene] (values: Array[N], copy: Boolean)(implicit ev: Numeric[N]) {
   require(values.length > 0, "values cannot be empty in histogram")
 
-  private val sorted = values.sorted
+  def this(values: Array[N])(implicit ev: Numeric[N]) = this(values, true)
+
+  // reordered in place by each selection; the values themselves never change
+  private val ranked = if (copy) values.clone else values
+
+  // found before any selection reorders ranked, so they are never read mid-swap
+  val max: N = ranked.max
+  val min: N = ranked.min
 
   /** p in [0.0, 1.0] ? */
-  private def isPercent(p: Double) = 
+  private def isPercent(p: Double) =
     p >= 0.0 && p <= 1.0
 
   def percentile(p: Double): N = {
     require(isPercent(p), "Not a valid percentile: " + p)
 
     // nearest rank definition of percentile
-    if (p == 1.0) sorted(sorted.length - 1) // special case
+    if (p == 1.0) max // special case
     else {
-      val rank = math.round(p * sorted.length.toDouble).toInt
-      sorted(rank)
+      val rank = math.min(math.round(p * ranked.length.toDouble).toInt, ranked.length - 1)
+      ranked.synchronized(Histogram.select(ranked, rank))
+    }
+  }
+}
+
+object Histogram {
+
+  /**
+   * Reorders a so that a(k) holds the value it would hold were a sorted, with no greater value
+   * before it and no smaller one after it, and returns it. Expected O(n); arrays of Doubles and
+   * Floats are compared unboxed, in the order java.lang.Double.compare gives them.
+   */
+  def select[N](a: Array[N], k: Int)(implicit ord: Ordering[N]): N = {
+    require(k >= 0 && k < a.length, "rank out of range: " + k)
+    ((a: AnyRef) match {
+      case d: Array[Double] => selectDoubles(d, k)
+      case f: Array[Float] => selectFloats(f, k)
+      case _ => selectBoxed(a, k)
+    }).asInstanceOf[N]
+  }
+
+  private def selectDoubles(a: Array[Double], k: Int): Double = {
+    var lo = 0
+    var hi = a.length - 1
+    while (lo < hi) {
+      val pivot = median3(a(lo), a((lo + hi) >>> 1), a(hi))
+      var i = lo
+      var j = hi
+      while (i <= j) {
+        while (java.lang.Double.compare(a(i), pivot) < 0) i += 1
+        while (java.lang.Double.compare(a(j), pivot) > 0) j -= 1
+        if (i <= j) {
+          val t = a(i); a(i) = a(j); a(j) = t
+          i += 1
+          j -= 1
+        }
+      }
+      if (k <= j) hi = j
+      else if (k >= i) lo = i
+      else return a(k)
+    }
+    a(k)
+  }
+
+  private def median3(x: Double, y: Double, z: Double): Double = {
+    import java.lang.Double.compare
+    if (compare(x, y) < 0) { if (compare(y, z) < 0) y else if (compare(x, z) < 0) z else x }
+    else { if (compare(x, z) < 0) x else if (compare(y, z) < 0) z else y }
+  }
+
+  private def selectFloats(a: Array[Float], k: Int): Float = {
+    var lo = 0
+    var hi = a.length - 1
+    while (lo < hi) {
+      val pivot = median3(a(lo), a((lo + hi) >>> 1), a(hi)).toFloat
+      var i = lo
+      var j = hi
+      while (i <= j) {
+        while (java.lang.Float.compare(a(i), pivot) < 0) i += 1
+        while (java.lang.Float.compare(a(j), pivot) > 0) j -= 1
+        if (i <= j) {
+          val t = a(i); a(i) = a(j); a(j) = t
+          i += 1
+          j -= 1
+        }
+      }
+      if (k <= j) hi = j
+      else if (k >= i) lo = i
+      else return a(k)
     }
+    a(k)
   }
 
-  def max: N = sorted(sorted.length - 1)
-  def min: N = sorted(0)
+  private def selectBoxed[N](a: Array[N], k: Int)(implicit ord: Ordering[N]): N = {
+    var lo = 0
+    var hi = a.length - 1
+    while (lo < hi) {
+      val pivot = a((lo + hi) >>> 1)
+      var i = lo
+      var j = hi
+      while (i <= j) {
+        while (ord.lt(a(i), pivot)) i += 1
+        while (ord.gt(a(j), pivot)) j -= 1
+        if (i <= j) {
+          val t = a(i); a(i) = a(j); a(j) = t
+          i += 1
+          j -= 1
+        }
+      }
+      if (k <= j) hi = j
+      else if (k >= i) lo = i
+      else return a(k)
+    }
+    a(k)
+  }
 }
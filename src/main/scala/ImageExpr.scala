@@ -0,0 +1,86 @@
+package shalene
+
+/** A per-pixel image expression, e.g. `img.expr.normalize.clamp(50, 200).normalize`, that is only recorded until it is
+	* materialized, and then evaluated in one fused loop into a single output buffer, rather than stage by stage through
+	* full intermediate images. Stages that need the range of their input, like `normalize`, take it from the stage
+	* below without another pass over memory where they can, as after a clamp or another normalize, and otherwise
+	* with one pass that evaluates the stages below without storing them.
+	* Stages may be evaluated for different pixels at once, so functions given to `map` and `combine` must be pure.
+	* @author James R. Thompson, D.Phil
+	*/
+abstract class ImageExpr(val width: Int, val height: Int) {
+
+	/** @return The value of pixel `i`, in row scanning order. */
+	def apply(i: Int) : Double
+
+	/** @return The statistics of the values of this expression, gathered in one pass that evaluates it without
+		* storing it, the first time they are asked for. Expressions over an image take them from its cached ones. */
+	def stats : ImageStats = gathered
+
+	private lazy val gathered = ImageStats.of(width, height)(apply(_))
+
+	/** @return The min and max of the values of this expression. */
+	def range : (Double, Double) = (stats.min, stats.max)
+
+	def map(f: Double => Double) : ImageExpr = new ImageExpr.Mapped(this, f)
+
+	def combine(that: ImageExpr)(f: (Double, Double) => Double) : ImageExpr = new ImageExpr.Combined(this, that, f)
+
+	/** Scales the values from their min and max to 0 and 255, as `NumericImage.normalizedPixels` does. */
+	def normalize : ImageExpr = new ImageExpr.Normalized(this)
+
+	/** Limits the values to `lo` to `hi`. */
+	def clamp(lo: Double, hi: Double) : ImageExpr = new ImageExpr.Clamped(this, lo, hi)
+
+	/** Evaluates every stage for each pixel in one pass, in parallel row bands for large images. */
+	def materialize : DoubleImage = {
+		val out = new Array[Double](width * height)
+		GridTraversal.forEachBand(0, height, width)((from, until) => {
+			var i = from * width
+			val end = until * width
+			while(i < end) { out(i) = apply(i); i += 1 }
+		})
+		new DoubleImage(width, height, out)
+	}
+
+	def toNumericImage : NumericImage[Double] = materialize.toNumericImage
+}
+
+object ImageExpr {
+
+	def apply(img: DoubleImage) : ImageExpr = new ImageExpr(img.width, img.height) {
+		private val buffer = img.buffer
+		def apply(i: Int) = buffer(i)
+		override def stats = img.stats
+	}
+
+	/** Reads the pixels of `img` straight out of its buffer; primitive buffers are read without `Numeric`. */
+	def apply[T](img: NumericImage[T]) : ImageExpr = new ImageExpr(img.width, img.height) {
+		private val value = img.pixelValue
+		def apply(i: Int) = value(i)
+		override def stats = img.stats
+	}
+
+	private class Mapped(in: ImageExpr, f: Double => Double) extends ImageExpr(in.width, in.height) {
+		def apply(i: Int) = f(in(i))
+	}
+
+	private class Combined(lhs: ImageExpr, rhs: ImageExpr, f: (Double, Double) => Double) extends ImageExpr(lhs.width, lhs.height) {
+		require(lhs.width == rhs.width && lhs.height == rhs.height, "images must be the same size")
+		def apply(i: Int) = f(lhs(i), rhs(i))
+	}
+
+	private class Normalized(in: ImageExpr) extends ImageExpr(in.width, in.height) {
+		private lazy val lo = in.range._1
+		private lazy val scale = 255 / (in.range._2 - lo)
+		def apply(i: Int) = scaled(in(i))
+		override def range = (scaled(in.range._1), scaled(in.range._2))
+		private def scaled(v: Double) = (v - lo) * scale
+	}
+
+	private class Clamped(in: ImageExpr, lo: Double, hi: Double) extends ImageExpr(in.width, in.height) {
+		def apply(i: Int) = clamp(in(i))
+		override def range = (clamp(in.range._1), clamp(in.range._2))
+		private def clamp(v: Double) = if(v < lo) lo else if(v > hi) hi else v
+	}
+}
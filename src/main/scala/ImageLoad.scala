@@ -1,54 +1,299 @@
 package shalene
 
 import ij.process.ImageProcessor
-import java.io.{File, FileInputStream}
+import java.io.{File, InputStream, IOException}
 import java.lang.Float
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.util.concurrent.{Callable, ExecutionException}
 import loci.formats.{ChannelSeparator, FormatException, IFormatReader}
 import loci.plugins.util.{ImageProcessorReader, LociPrefs}
+import scala.collection.JavaConversions._
 
 object ImageLoad {
 
-	def loadTIFF(file: File) : TiffStack[Int] = {
-		val td = new TiffDecoder(file)
-    val fi = td.getTiffInfo.get(0)
-    val in = new FileInputStream(file)
-    val reader = new ImageReader(fi)
-    val stack = for(i <- 0 until fi.nImages) yield new NumericImage[Int](fi.width, fi.height, fi.fileType match {
-			case FileInfo.GRAY8 =>  reader.read8bitImage(in).view.map(_&0xff).toArray
-			case FileInfo.COLOR8 => reader.read8bitImage(in).view.map(_&0xff).toArray
-			case FileInfo.GRAY16_SIGNED => reader.read16bitImage(in).view.map(_&0xffff).toArray
-			case FileInfo.GRAY16_UNSIGNED => reader.read16bitImage(in).view.map(_&0xffff).toArray
-			case FileInfo.GRAY32_INT => reader.read32bitImage(in).view.map(java.lang.Float.floatToIntBits(_)).toArray
-			case FileInfo.GRAY32_UNSIGNED => reader.read32bitImage(in).view.map(java.lang.Float.floatToIntBits(_)).toArray
-			case FileInfo.GRAY32_FLOAT => reader.read32bitImage(in).view.map(java.lang.Float.floatToIntBits(_)).toArray
-			case FileInfo.GRAY64_FLOAT => reader.read64bitImage(in).view.map(java.lang.Float.floatToIntBits(_)).toArray
-			case FileInfo.RGB => reader.readChunkyRGB(in)
-			case FileInfo.BGR => reader.readChunkyRGB(in)
-			case FileInfo.ARGB => reader.readChunkyRGB(in)
-			case FileInfo.ABGR => reader.readChunkyRGB(in)
-			case FileInfo.BARG => reader.readChunkyRGB(in)
-			case FileInfo.RGB_PLANAR => reader.readPlanarRGB(in)
-			case FileInfo.BITMAP => reader.read1bitImage(in).view.map(_&0xff).toArray
-			case FileInfo.GRAY12_UNSIGNED => reader.read12bitImage(in).view.map(_&0xffff).toArray
-			case FileInfo.GRAY24_UNSIGNED => reader.read24bitImage(in).view.map(java.lang.Float.floatToIntBits(_)).toArray
-		})
-		in.close
-		new TiffStack(stack)
-	}
-
-	def loadND2(file: File) = {
-    val reader = new ImageProcessorReader(new ChannelSeparator(LociPrefs.makeImageReader))
-    reader.setId(file.getAbsolutePath)
-    val numFrames = reader.getImageCount
-    val width = reader.getSizeX
-    val height = reader.getSizeY
-    val bitDepth = reader.getBitsPerPixel
-    val mask = if(bitDepth == 8) 0xff else 0xffff
-    val out = for(i <- 0 until numFrames) yield reader.openProcessors(i)(0).getPixels match {
-    	case ba:Array[Byte] => new NumericImage[Int](width, height, ba.view.map(_&0xff).toArray)
-    	case sa:Array[Short] => new NumericImage[Int](width, height, sa.view.map(_&0xffff).toArray)
-    }
-    new TiffStack(out)
-  }
+	/** Decodes every frame of `file` up front, keeping them at their native bit depth. Frames are located
+		* through `tiffFrames`, so a valid index lets this skip IFD parsing altogether.
+		* @return A `TiffStack` backed by `PackedFrames`. */
+	def loadTIFF(file: File) : TiffStack[Int] = decodeTIFF(file, tiffFrames(file))
+
+	/** Decodes only the frames of `file` in `frames`, e.g. `500 to 1500 by 5` for every 5th frame from 500 to 1500.
+		* The pixels of the other frames are never read. */
+	def loadTIFF(file: File, frames: Range) : TiffStack[Int] = decodeTIFF(file, tiffFrames(file, frames))
+
+	private def decodeTIFF(file: File, fileInfos: IndexedSeq[FileInfo]) : TiffStack[Int] = {
+		val frames = new MappedTiffFrames(file, fileInfos)
+		try new TiffStack(new PackedFrames(frames.frames(0).width, frames.frames(0).height, frames.indices.map(frames.packed).toVector))
+		finally frames.close
+	}
+
+	/** Decodes the channels of an ImageJ hyperstack `file` numbered in `channels`, keeping each one as a stack of its
+		* own. ImageJ interleaves the planes of each frame by channel; the planes of other channels are never read. */
+	def loadTIFFChannels(file: File, channels: Seq[Int]) : ChannelStack[Int] = loadTIFFChannels(file, channels, 0 until Int.MaxValue)
+
+	/** Decodes only the frames in `frames` of the channels of `file` in `channels`, e.g. `500 to 1500 by 5`. */
+	def loadTIFFChannels(file: File, channels: Seq[Int], frames: Range) : ChannelStack[Int] = {
+		val all = tiffFrames(file)
+		val numChannels = tiffChannels(all(0))
+		checkChannels(file, channels, numChannels)
+		val perChannel = all.length / numChannels
+		val stacks = for(c <- channels.toIndexedSeq) yield
+			decodeTIFF(file, selectFrames(file, frames, perChannel).map(i => all(i * numChannels + c)))
+		new ChannelStack(channels.toIndexedSeq, stacks)
+	}
+
+	/** @return The number of channels of `file`, from the `channels=` entry that ImageJ writes into the description of
+		* hyperstacks, or 1 if there is none. */
+	def tiffChannels(file: File) : Int = tiffChannels(tiffFrames(file)(0))
+
+	private def tiffChannels(fi: FileInfo) : Int = {
+		val entry = if(fi.description == null) None else "(?m)^channels=(\\d+)".r.findFirstMatchIn(fi.description)
+		entry.map(_.group(1).toInt).filter(_ > 0).getOrElse(1)
+	}
+
+	private def checkChannels(file: File, channels: Seq[Int], numChannels: Int) = {
+		if(channels.isEmpty) throw new IllegalArgumentException("No channels of " + file.getName + " were asked for")
+		for(c <- channels if c < 0 || c >= numChannels)
+			throw new IllegalArgumentException(file.getName + " has no channel " + c + "; it has " + numChannels)
+	}
+
+	/** Decodes every frame of `file` up front and keeps it deflated in memory, inflating it again when it is asked for.
+		* This takes a fraction of the memory of `loadTIFF`, so several stacks can be kept open at once.
+		* @return A `TiffStack` backed by `CompressedFrames`. */
+	def loadCompressedTIFF(file: File) : TiffStack[Int] = compressTIFF(file, tiffFrames(file))
+
+	/** Decodes only the frames of `file` in `frames`, as `loadCompressedTIFF(file)` decodes all of them. */
+	def loadCompressedTIFF(file: File, frames: Range) : TiffStack[Int] = compressTIFF(file, tiffFrames(file, frames))
+
+	/** Frames are deflated as they are decoded, so the whole stack is never held inflated. */
+	private def compressTIFF(file: File, fileInfos: IndexedSeq[FileInfo]) : TiffStack[Int] = {
+		val frames = new MappedTiffFrames(file, fileInfos)
+		val width = fileInfos(0).width
+		try new TiffStack(new CompressedFrames(width, fileInfos(0).height,
+			frames.indices.map(i => CompressedFrames.compress(width, frames.packed(i))).toVector))
+		finally frames.close
+	}
+
+	/** Decodes every frame of `file` up front into direct buffers outside the heap, so that a stack of many gigabytes
+		* does not lengthen garbage collection pauses.
+		* @return A `TiffStack` backed by `OffHeapFrames`. */
+	def loadOffHeapTIFF(file: File) : TiffStack[Int] = storeOffHeap(file, tiffFrames(file), null)
+
+	/** Decodes the frames of `file` in `frames` into `scratch`, a file mapped into memory, which the operating system
+		* can page out; `scratch` is created or overwritten and should be deleted once the stack is done with. */
+	def loadOffHeapTIFF(file: File, frames: Range, scratch: File) : TiffStack[Int] = storeOffHeap(file, tiffFrames(file, frames), scratch)
+
+	private def storeOffHeap(file: File, fileInfos: IndexedSeq[FileInfo], scratch: File) : TiffStack[Int] = {
+		val frames = new MappedTiffFrames(file, fileInfos)
+		try new TiffStack(OffHeapFrames(fileInfos(0).width, fileInfos(0).height, frames.length,
+			frames.indices.iterator.map(frames.packed), scratch))
+		finally frames.close
+	}
+
+	/** Opens `file` without decoding any pixels; each frame is read from a memory map when it is asked for.
+		* @return A `TiffStack` backed by `MappedTiffFrames`. */
+	def loadMappedTIFF(file: File) : TiffStack[Int] = new TiffStack(new MappedTiffFrames(file, tiffFrames(file)))
+
+	/** Opens only the frames of `file` in `frames`, as `loadMappedTIFF(file)` opens all of them. */
+	def loadMappedTIFF(file: File, frames: Range) : TiffStack[Int] = new TiffStack(new MappedTiffFrames(file, tiffFrames(file, frames)))
+
+	/** @return The `FileInfo` of each frame of `file` in `frames`, in the order `frames` gives them. */
+	def tiffFrames(file: File, frames: Range) : IndexedSeq[FileInfo] = {
+		val all = tiffFrames(file)
+		selectFrames(file, frames, all.length).map(all)
+	}
+
+	/** @return The frames in `frames` that `file`, with `count` frames, has. */
+	private def selectFrames(file: File, frames: Range, count: Int) : IndexedSeq[Int] = {
+		val selected = if(frames.step > 0) frames.dropWhile(_ < 0).takeWhile(_ < count) else frames.filter(i => i >= 0 && i < count)
+		if(selected.isEmpty) throw new IllegalArgumentException(file.getName + " has no frames in " + frames)
+		selected
+	}
+
+	/** @return One `FileInfo` per frame of `file`, each giving that frame's own offset and strips. ImageJ stacks
+		* describe all their frames with the first IFD, so later frames are laid out from it using `gapBetweenImages`.
+		* Unless the `shalene.tiffindex` system property turns it off, a `TiffIndex` of each file is kept in the user's
+		* cache directory and reused while the file is unchanged. Setting `shalene.extrapolateIFDs` lays out stacks of
+		* evenly spaced IFDs from a few of them, as `TiffDecoder.setExtrapolateIFDs` describes. */
+	def tiffFrames(file: File) : IndexedSeq[FileInfo] = {
+		val useIndex = TiffIndex.isEnabled
+		if(useIndex) {
+			val indexed = TiffIndex.read(file)
+			if(indexed != null) return indexed.toIndexedSeq
+		}
+		val frames = parseTiffFrames(file)
+		if(useIndex) TiffIndex.write(file, frames)
+		frames
+	}
+
+	private def parseTiffFrames(file: File) : IndexedSeq[FileInfo] = {
+		val decoder = new TiffDecoder(file)
+		decoder.setExtrapolateIFDs(java.lang.Boolean.getBoolean("shalene.extrapolateIFDs"))
+		val info = decoder.getTiffInfo
+		if(info == null) throw new IOException(file.getName + " is not a Tiff file")
+		val fi = info.get(0)
+		if(info.size > 1 || fi.nImages <= 1)
+			info.toIndexedSeq.filter(f => f.width == fi.width && f.height == fi.height && f.fileType == fi.fileType)
+		else {
+			val frameBytes = fi.width.toLong * fi.height * fi.getBytesPerPixel + fi.gapBetweenImages
+			(0 until fi.nImages).map(i => shiftFrame(fi, i * frameBytes))
+		}
+	}
+
+	private def shiftFrame(fi: FileInfo, delta: Long) : FileInfo = {
+		val shifted = TiffDecoder.shiftFrame(fi, delta)
+		shifted.nImages = 1
+		shifted
+	}
+
+	/** Reads the next frame described by `fi` from `in`, widened to `Int` pixels. */
+	def readPixels(reader: ImageReader, fi: FileInfo, in: InputStream) : Array[Int] = readPacked(reader, fi, in).widen
+
+	/** Reads the next frame described by `fi` from `in`, at its native bit depth. */
+	def readPacked(reader: ImageReader, fi: FileInfo, in: InputStream) : PackedPixels = fi.fileType match {
+		case FileInfo.GRAY8 => BytePixels(reader.read8bitImage(in))
+		case FileInfo.COLOR8 => BytePixels(reader.read8bitImage(in))
+		case FileInfo.GRAY16_SIGNED => ShortPixels(reader.read16bitImage(in))
+		case FileInfo.GRAY16_UNSIGNED => ShortPixels(reader.read16bitImage(in))
+		case FileInfo.GRAY32_INT => FloatPixels(reader.read32bitImage(in))
+		case FileInfo.GRAY32_UNSIGNED => FloatPixels(reader.read32bitImage(in))
+		case FileInfo.GRAY32_FLOAT => FloatPixels(reader.read32bitImage(in))
+		case FileInfo.GRAY64_FLOAT => FloatPixels(reader.read64bitImage(in))
+		case FileInfo.RGB => IntPixels(reader.readChunkyRGB(in))
+		case FileInfo.BGR => IntPixels(reader.readChunkyRGB(in))
+		case FileInfo.ARGB => IntPixels(reader.readChunkyRGB(in))
+		case FileInfo.ABGR => IntPixels(reader.readChunkyRGB(in))
+		case FileInfo.BARG => IntPixels(reader.readChunkyRGB(in))
+		case FileInfo.RGB_PLANAR => IntPixels(reader.readPlanarRGB(in))
+		case FileInfo.BITMAP => BytePixels(reader.read1bitImage(in))
+		case FileInfo.GRAY12_UNSIGNED => ShortPixels(reader.read12bitImage(in))
+		case FileInfo.GRAY24_UNSIGNED => FloatPixels(reader.read24bitImage(in))
+	}
+
+	/** Reads the frame described by `fi` out of `buffer`, which holds the file or the part of it that the offsets of
+		* `fi` are relative to. Uncompressed grayscale frames stored in one run of bytes are copied straight out of a
+		* view of `buffer` in the file's byte order; anything else is read as a stream. */
+	def readPacked(reader: ImageReader, fi: FileInfo, buffer: ByteBuffer) : PackedPixels =
+		if(!isContiguous(fi)) readPacked(reader, fi, new ByteBufferInputStream(buffer.duplicate))
+		else fi.fileType match {
+			case FileInfo.GRAY8 | FileInfo.COLOR8 => BytePixels(reader.read8bitImage(buffer))
+			case FileInfo.GRAY16_SIGNED | FileInfo.GRAY16_UNSIGNED => ShortPixels(reader.read16bitImage(buffer))
+			case FileInfo.GRAY32_INT | FileInfo.GRAY32_UNSIGNED | FileInfo.GRAY32_FLOAT => FloatPixels(reader.read32bitImage(buffer))
+			case FileInfo.GRAY64_FLOAT => FloatPixels(reader.read64bitImage(buffer))
+			case _ => readPacked(reader, fi, new ByteBufferInputStream(buffer.duplicate))
+		}
+
+	/** @return true if the frame described by `fi` is uncompressed and its strips follow on from one another. */
+	def isContiguous(fi: FileInfo) : Boolean = fi.compression <= FileInfo.COMPRESSION_NONE && !isTiled(fi) && {
+		val offsets = fi.stripOffsets
+		offsets == null || offsets.length <= 1 || (fi.stripLengths != null && fi.stripLengths.length >= offsets.length &&
+			offsets(0) == fi.getOffset && (1 until offsets.length).forall(i => offsets(i - 1) + fi.stripLengths(i - 1) == offsets(i)))
+	}
+
+	/** @return true if the frame described by `fi` can be read with `readStrips`. */
+	def hasParallelStrips(fi: FileInfo) : Boolean =
+		fi.compression > FileInfo.COMPRESSION_NONE && fi.stripOffsets != null && fi.stripOffsets.length > 1 &&
+			fi.stripLengths != null && !isTiled(fi) && isGray(fi)
+
+	/** @return true if the frame described by `fi` is tiled, and so has to be read with `readRegion`. */
+	def isTiled(fi: FileInfo) : Boolean = fi.tileWidth > 0 && fi.tileHeight > 0
+
+	/** @return true if part of the frame described by `fi` can be read with `readRegion`. */
+	def hasRegions(fi: FileInfo) : Boolean = isGray(fi)
+
+	private def isGray(fi: FileInfo) : Boolean = fi.fileType match {
+		case FileInfo.GRAY8 | FileInfo.COLOR8 | FileInfo.GRAY16_SIGNED | FileInfo.GRAY16_UNSIGNED |
+			FileInfo.GRAY32_INT | FileInfo.GRAY32_UNSIGNED | FileInfo.GRAY32_FLOAT => true
+		case _ => false
+	}
+
+	/** Reads the compressed frame described by `fi` from `channel`, decompressing its strips in parallel. */
+	def readStrips(reader: ImageReader, fi: FileInfo, channel: FileChannel) : PackedPixels = fi.fileType match {
+		case FileInfo.GRAY8 | FileInfo.COLOR8 => BytePixels(reader.readCompressed8bitImage(channel))
+		case FileInfo.GRAY16_SIGNED | FileInfo.GRAY16_UNSIGNED => ShortPixels(reader.readCompressed16bitImage(channel))
+		case _ => FloatPixels(reader.readCompressed32bitImage(channel))
+	}
+
+	/** Reads the part of the frame described by `fi` inside the rectangle (`x`, `y`, `w`, `h`) from `channel`,
+		* reading and decompressing only the strips or tiles that overlap it. */
+	def readRegion(reader: ImageReader, fi: FileInfo, channel: FileChannel, x: Int, y: Int, w: Int, h: Int) : PackedPixels = {
+		if(!hasRegions(fi)) throw new IOException("Only parts of grayscale Tiff frames can be read")
+		fi.fileType match {
+			case FileInfo.GRAY8 | FileInfo.COLOR8 => BytePixels(reader.readRegion8bitImage(channel, x, y, w, h))
+			case FileInfo.GRAY16_SIGNED | FileInfo.GRAY16_UNSIGNED => ShortPixels(reader.readRegion16bitImage(channel, x, y, w, h))
+			case _ => FloatPixels(reader.readRegion32bitImage(channel, x, y, w, h))
+		}
+	}
+
+	def loadND2(file: File) : TiffStack[Int] = loadND2(file, 0 until Int.MaxValue)
+
+	/** Loads only the frames of `file` in `frames`, e.g. `500 to 1500 by 5`; the other planes are never opened. */
+	def loadND2(file: File, frames: Range) : TiffStack[Int] = loadND2(file, frames, nd2Workers)
+
+	/** Loads the frames of `file` in `frames` with up to `workers` readers, on the shared `GridTraversal.pool`. */
+	def loadND2(file: File, frames: Range, workers: Int) : TiffStack[Int] = {
+		val reader = openND2(file)
+		val width = reader.getSizeX
+		val height = reader.getSizeY
+		val selected = try selectFrames(file, frames, reader.getImageCount) catch { case e: Exception => reader.close; throw e }
+		new TiffStack(new PackedFrames(width, height, readND2(file, reader, selected, workers).toVector))
+	}
+
+	/** Loads the channels of `file` numbered in `channels`, keeping each one as a stack of its own. Each plane is
+		* decoded once, and the planes of other channels are never opened. */
+	def loadND2Channels(file: File, channels: Seq[Int]) : ChannelStack[Int] = loadND2Channels(file, channels, 0 until Int.MaxValue)
+
+	/** Loads only the frames in `frames` of the channels of `file` in `channels`, e.g. `500 to 1500 by 5`. */
+	def loadND2Channels(file: File, channels: Seq[Int], frames: Range) : ChannelStack[Int] = {
+		val reader = openND2(file)
+		val width = reader.getSizeX
+		val height = reader.getSizeY
+		val planes = try {
+			checkChannels(file, channels, reader.getSizeC)
+			val byChannel = (0 until reader.getImageCount).groupBy(i => reader.getZCTCoords(i)(1))
+			for(c <- channels.toIndexedSeq) yield {
+				val inChannel = byChannel(c).sorted
+				selectFrames(file, frames, inChannel.length).map(inChannel)
+			}
+		} catch { case e: Exception => reader.close; throw e }
+		val pixels = readND2(file, reader, planes.flatten, nd2Workers)
+		val starts = planes.scanLeft(0)(_ + _.length)
+		val stacks = for(k <- planes.indices) yield
+			new TiffStack(new PackedFrames(width, height, pixels.slice(starts(k), starts(k + 1)).toVector))
+		new ChannelStack(channels.toIndexedSeq, stacks)
+	}
+
+	/** Reads the planes of `file` numbered in `planes` in `workers` runs on the shared pool, closing `reader` once
+		* done with it. Bio-Formats readers are not thread-safe, so each run opens a reader of its own on the file and
+		* reads its planes with it; `reader`, already open, serves the first run. */
+	private def readND2(file: File, reader: ImageProcessorReader, planes: IndexedSeq[Int], workers: Int) : Array[PackedPixels] = {
+		require(workers >= 1, "workers must be >= 1")
+		val out = new Array[PackedPixels](planes.length)
+		val runs = planes.indices.grouped(math.max(minND2Run, (planes.length + workers - 1) / workers)).toVector
+		val tasks = for((run, k) <- runs.zipWithIndex) yield new Callable[Unit] {
+			def call = {
+				val r = if(k == 0) reader else openND2(file)
+				try for(i <- run) out(i) = readND2(r, planes(i)) finally r.close
+			}
+		}
+		for(f <- GridTraversal.pool.invokeAll(tasks)) try f.get catch { case e: ExecutionException => throw e.getCause }
+		out
+	}
+
+	private val nd2Workers = math.min(4, Runtime.getRuntime.availableProcessors)
+
+	/** Fewest frames worth opening another reader for, as opening an ND2 file parses all of its metadata. */
+	private val minND2Run = 8
+
+	private def openND2(file: File) : ImageProcessorReader = {
+		val reader = new ImageProcessorReader(new ChannelSeparator(LociPrefs.makeImageReader))
+		reader.setId(file.getAbsolutePath)
+		reader
+	}
+
+	private def readND2(reader: ImageProcessorReader, index: Int) : PackedPixels = reader.openProcessors(index)(0).getPixels match {
+		case ba:Array[Byte] => BytePixels(ba)
+		case sa:Array[Short] => ShortPixels(sa)
+	}
 
 }
\ No newline at end of file
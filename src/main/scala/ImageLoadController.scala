@@ -75,7 +75,9 @@ class ImageLoadController extends Initializable {
 		val extension : FileChooser.ExtensionFilter = new FileChooser.ExtensionFilter("TIFF files (*.tif)", "*.tif")
 		fc.getExtensionFilters.add(extension)
 		file = fc.showOpenDialog(imageLoadAnchorPane.sceneProperty.get.getWindow)
-		tiffStack = ImageLoad.loadTIFF(file)
+		val opened = ImageLoad.loadMappedTIFF(file).cached()
+		if(tiffStack != null) tiffStack.close
+		tiffStack = opened
 		frameSlider.setValue(0)
 		frameSlider.setMax(tiffStack.getNumFrames - 1)
 		imagePreview.setImage(tiffStack.getJFXFrame(0))
@@ -87,7 +89,9 @@ class ImageLoadController extends Initializable {
 		val extension : FileChooser.ExtensionFilter = new FileChooser.ExtensionFilter("ND2 files (*.nd2)", "*.nd2")
 		fc.getExtensionFilters.add(extension)
 		file = fc.showOpenDialog(imageLoadAnchorPane.sceneProperty.get.getWindow)
-		tiffStack = ImageLoad.loadND2(file)
+		val opened = ImageLoad.loadND2(file).cached()
+		if(tiffStack != null) tiffStack.close
+		tiffStack = opened
 		frameSlider.setValue(0)
 		frameSlider.setMax(tiffStack.getNumFrames - 1)
 		imagePreview.setImage(tiffStack.getJFXFrame(0))
@@ -104,7 +108,7 @@ class ImageLoadController extends Initializable {
 	def updatePreviewImage(frameIndex : Int = 0) = imagePreview.setImage(tiffStack.getJFXFrame(frameIndex))
 
 	def updateEdge(frame: Int = 0) {
-		val ef = new EdgeFinder(tiffStack.getFrame(frame).getDoubleImage.getBuffer, tiffStack.getWidth, tiffStack.getHeight)
+		val ef = new EdgeFinder(tiffStack.getFrame(frame).toDoubleImage)
 		val calc = ef.convImgToPolar(anglesSlider.getValue.toInt, thresholdSlider.getValue.toDouble, radiusSlider.getValue.toInt)
 		val edgeLocation = calc.map(_._2)
 		val pixelData = calc.map(_._1)
@@ -163,9 +167,11 @@ class ImageLoadController extends Initializable {
 					protected def call : GUV = {
 						val guv : GUV = new GUV(file.getAbsolutePath)
 						var counter = 0
-						for(img <- tiffStack.stack) {
+						// decode the next frames while this one is analysed
+						val frames = new FramePrefetcher(tiffStack.stack)
+						try for(img <- frames) {
 							val numFrames = tiffStack.getNumFrames - 1
-							val ef = new EdgeFinder(img.getDoubleImage.getBuffer, tiffStack.getWidth, tiffStack.getHeight)
+							val ef = new EdgeFinder(img.toDoubleImage)
 							val calc = ef.convImgToPolar(anglesSlider.getValue.toInt, thresholdSlider.getValue.toDouble, radiusSlider.getValue.toInt)
 							val intensities = calc.map(edgeIntensity)
 							val avgInt = intensities.sum / intensities.length
@@ -176,7 +182,7 @@ class ImageLoadController extends Initializable {
 							updateProgress(counter, numFrames)
 							guv.addContour(cont)
 							guv.saveAvgIntensity
-						}
+						} finally frames.close
 						return guv
 					}
 				}
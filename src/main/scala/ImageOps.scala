@@ -2,14 +2,21 @@ package shalene
 
 object ImageOps {
 
-	def blur[BitDepth](sigma: Double, img: NumericImage[BitDepth]) = (new GrayscaleGaussConvolution(sigma, DefaultSquareKernel)).convolve(img.normalizedImage)
-
-  def contrastAdjust[BitDepth](min: Double, max: Double, img: NumericImage[BitDepth]) : NumericImage[Double] = {
-    val buff = img.normalizedImage.getBuffer
-    for(i <- 0 until img.getBuffer.length) {
-      if(buff(i) < min) buff(i) = min else if(buff(i) < max) buff(i) = max
-    }
-    (new NumericImage[Double](img.width, img.height, buff)).normalizedImage
-  }
+	def blur[BitDepth](sigma: Double, img: NumericImage[BitDepth]) : NumericImage[Double] = blur(sigma, img.expr).toNumericImage
+
+	def blur(sigma: Double, img: DoubleImage) : DoubleImage = blur(sigma, ImageExpr(img))
+
+	/** Normalizes `img` in the same pass that reads it, then blurs it; the blur needs every pixel around each one, so
+		* it is the one stage that can't be fused. */
+	def blur(sigma: Double, img: ImageExpr) : DoubleImage =
+		(new GrayscaleGaussConvolution(sigma, DefaultSquareKernel)).convolve(img.normalize.materialize)
+
+  def contrastAdjust[BitDepth](min: Double, max: Double, img: NumericImage[BitDepth]) : NumericImage[Double] =
+    contrastAdjust(min, max, img.expr).toNumericImage
+
+  def contrastAdjust(min: Double, max: Double, img: DoubleImage) : DoubleImage = contrastAdjust(min, max, ImageExpr(img)).materialize
+
+  /** Clamps the normalized pixels of `img` to `min` to `max` and stretches them back to 0 to 255, as one expression. */
+  def contrastAdjust(min: Double, max: Double, img: ImageExpr) : ImageExpr = img.normalize.clamp(min, max).normalize
 
 }
\ No newline at end of file
@@ -0,0 +1,90 @@
+package shalene
+
+import java.util.concurrent.atomic.AtomicReference
+
+/** Summary statistics of the pixels of an image, all gathered in one pass. `variance` is the population variance,
+	* and `minIndex` and `maxIndex` are the first pixels, in row scanning order, holding the min and max.
+	* @author James R. Thompson, D.Phil
+	*/
+case class ImageStats(count: Long, min: Double, max: Double, sum: Double, mean: Double, variance: Double,
+		minIndex: Int, maxIndex: Int) {
+	def stdDev : Double = math.sqrt(variance)
+}
+
+/** The cached statistics of an image. `invalidate` costs pixel writes only a volatile read while nothing is cached.
+	* While statistics are being gathered the cache holds a marker for that pass instead, which any write in the
+	* meantime clears, so that the pass does not publish statistics of a buffer that changed under it.
+	*/
+private[shalene] final class StatsCache extends AtomicReference[AnyRef] {
+
+	def apply(gather: => ImageStats) : ImageStats = get match {
+		case s: ImageStats => s
+		case _ =>
+			val pass = new Object
+			set(pass)
+			val s = gather
+			compareAndSet(pass, s)
+			s
+	}
+
+	def invalidate : Unit = if(get ne null) set(null)
+
+	def clear : Unit = set(null)
+}
+
+object ImageStats {
+
+	/** Gathers the statistics of the `width` x `height` pixels whose values `value` gives, in row scanning order.
+		* Large images are scanned in parallel row bands, whose results are merged in order, so the statistics do not
+		* depend on how the bands were scheduled. */
+	def of(width: Int, height: Int)(value: Int => Double) : ImageStats = {
+		val bands = new Array[Partial](height)
+		GridTraversal.forEachBand(0, height, width)((from, until) => bands(from) = scan(from * width, until * width, value))
+		val all = bands.filter(_ != null).reduceLeft(merge)
+		ImageStats(all.n, all.min, all.max, all.sum, all.mean, if(all.n > 0) all.m2 / all.n else 0.0, all.minIndex, all.maxIndex)
+	}
+
+	/** Statistics of a band, with its mean and sum of squared deviations from it. */
+	private class Partial(val n: Long, val min: Double, val max: Double, val minIndex: Int, val maxIndex: Int,
+		val sum: Double, val mean: Double, val m2: Double)
+
+	/** Sums the values of a band, and their squares, shifted by the first of them so that the squares don't swamp the
+		* deviations when the values are large; the mean and deviations of the band follow from the sums at its end. */
+	private def scan(from: Int, until: Int, value: Int => Double) : Partial = {
+		var min = Double.PositiveInfinity
+		var max = Double.NegativeInfinity
+		var minIndex = -1
+		var maxIndex = -1
+		var sum = 0.0
+		var shifted = 0.0
+		var squares = 0.0
+		val shift = value(from)
+		var i = from
+		while(i < until) {
+			val v = value(i)
+			if(v < min || minIndex < 0) { min = v; minIndex = i }
+			if(v > max || maxIndex < 0) { max = v; maxIndex = i }
+			sum += v
+			val d = v - shift
+			shifted += d
+			squares += d * d
+			i += 1
+		}
+		val n = until - from
+		new Partial(n, min, max, minIndex, maxIndex, sum, shift + shifted / n, math.max(0.0, squares - shifted * shifted / n))
+	}
+
+	/** Merges the statistics of two bands, `a` coming before `b`, as Chan et al. combine partial variances. */
+	private def merge(a: Partial, b: Partial) : Partial = {
+		if(a.n == 0) b
+		else if(b.n == 0) a
+		else {
+			val n = a.n + b.n
+			val delta = b.mean - a.mean
+			val (min, minIndex) = if(b.min < a.min) (b.min, b.minIndex) else (a.min, a.minIndex)
+			val (max, maxIndex) = if(b.max > a.max) (b.max, b.maxIndex) else (a.max, a.maxIndex)
+			new Partial(n, min, max, minIndex, maxIndex, a.sum + b.sum, a.mean + delta * b.n / n,
+				a.m2 + b.m2 + delta * delta * a.n * b.n / n)
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package shalene
+
+import java.io.{File, InputStream, RandomAccessFile}
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import scala.collection.mutable.ArrayBuffer
+
+/** Frames of a Tiff file, decoded straight out of a memory-mapped `FileChannel` one at a time, and only when
+	* asked for. Compressed frames made of several strips are instead decompressed strip by strip in parallel, and
+	* tiled frames tile by tile, while `region` reads only the strips or tiles around a rectangle. Nothing is decoded
+	* up front and decoded frames are not kept, so opening a stack costs about as much as reading its IFDs and
+	* resident memory stays flat whatever the size of the stack. The file is mapped once, in segments of whole frames
+	* of up to 2 GB each, the first time a frame in each is asked for, and every frame is read from a slice of its
+	* segment; `close` closes the file and lets go of the segments.
+	* @author James R. Thompson, D.Phil
+	* @constructor The open `file` and one `FileInfo` per frame, as given by `ImageLoad.tiffFrames`.
+	*/
+class MappedTiffFrames(val file: File, val frames: IndexedSeq[FileInfo]) extends LazyFrameSeq[Int] {
+
+	private val channel = new RandomAccessFile(file, "r").getChannel
+
+	/** The first and last byte of each frame, and the segment holding them. */
+	private val firstBytes = frames.map(MappedTiffFrames.firstByte).toArray
+	private val lastBytes = frames.map(fi => math.min(MappedTiffFrames.lastByte(fi), channel.size)).toArray
+	private val (segmentStarts, segmentEnds, frameSegments) = MappedTiffFrames.segments(firstBytes, lastBytes)
+	private val mapped = new Array[ByteBuffer](segmentStarts.length)
+
+	def length = frames.length
+
+	/** @return The bytes of the frame at `index`, from a slice of its mapped segment. */
+	private def bytes(index: Int) : ByteBuffer = {
+		val s = frameSegments(index)
+		val segment = mapped.synchronized {
+			if(mapped(s) == null)
+				mapped(s) = channel.map(FileChannel.MapMode.READ_ONLY, segmentStarts(s), segmentEnds(s) - segmentStarts(s))
+			mapped(s)
+		}.duplicate
+		segment.position((firstBytes(index) - segmentStarts(s)).toInt)
+		segment.limit((lastBytes(index) - segmentStarts(s)).toInt)
+		segment.slice
+	}
+
+	protected def frame(index: Int) : NumericImage[Int] = {
+		val fi = frames(index)
+		new NumericImage[Int](fi.width, fi.height, packed(index).widen)
+	}
+
+	/** @return The pixels of the frame at `index`, at their native bit depth. */
+	def packed(index: Int) : PackedPixels = {
+		val fi = frames(index)
+		if(ImageLoad.isTiled(fi))
+			return ImageLoad.readRegion(new ImageReader(fi), fi, channel, 0, 0, fi.width, fi.height)
+		if(ImageLoad.hasParallelStrips(fi))
+			return ImageLoad.readStrips(new ImageReader(fi), fi, channel)
+		val local = MappedTiffFrames.rebase(fi, firstBytes(index))
+		ImageLoad.readPacked(new ImageReader(local), local, bytes(index))
+	}
+
+	/** @return The pixels of the frame at `index` inside the rectangle (`x`, `y`, `w`, `h`), at their native bit
+		* depth. For grayscale frames only the strips or tiles that overlap the rectangle are read, and of uncompressed
+		* strips only the rectangle itself; other frames are decoded whole and cropped. */
+	def packedRegion(index: Int, x: Int, y: Int, w: Int, h: Int) : PackedPixels = {
+		val fi = frames(index)
+		if(ImageLoad.hasRegions(fi)) ImageLoad.readRegion(new ImageReader(fi), fi, channel, x, y, w, h)
+		else IntPixels(frame(index).crop(x, y, w, h).getBuffer)
+	}
+
+	override def region(index: Int, x: Int, y: Int, w: Int, h: Int) : NumericImage[Int] = {
+		if(index < 0 || index >= length) throw new IndexOutOfBoundsException(index.toString)
+		new NumericImage[Int](w, h, packedRegion(index, x, y, w, h).widen)
+	}
+
+	override def close = {
+		mapped.synchronized(for(s <- mapped.indices) mapped(s) = null)
+		channel.close
+	}
+}
+
+object MappedTiffFrames {
+
+	private def strips(fi: FileInfo) : Seq[(Long, Long)] =
+		if(fi.stripOffsets == null || fi.stripLengths == null || fi.stripOffsets.length != fi.stripLengths.length) Seq()
+		else fi.stripOffsets.indices.map(i => (fi.stripOffsets(i), fi.stripLengths(i).toLong))
+
+	/** Bytes taken up by a frame stored without compression. */
+	def frameBytes(fi: FileInfo) : Long = fi.fileType match {
+		case FileInfo.BITMAP => ((fi.width + 7) / 8).toLong * fi.height
+		case FileInfo.GRAY12_UNSIGNED => ((fi.width * 3 + 1) / 2).toLong * fi.height
+		case FileInfo.GRAY24_UNSIGNED => fi.width.toLong * fi.height * 3
+		case FileInfo.RGB48 | FileInfo.RGB48_PLANAR => fi.width.toLong * fi.height * 6
+		case _ => fi.width.toLong * fi.height * fi.getBytesPerPixel
+	}
+
+	/** Groups frames, in order, into segments of consecutive bytes of the file of up to 2 GB, each holding every byte
+		* of its frames, from `firstBytes` to `lastBytes`.
+		* @return The first and last byte of each segment, and the segment of each frame. */
+	private def segments(firstBytes: Array[Long], lastBytes: Array[Long]) : (Array[Long], Array[Long], Array[Int]) = {
+		val starts = new ArrayBuffer[Long]
+		val ends = new ArrayBuffer[Long]
+		val frameSegments = new Array[Int](firstBytes.length)
+		var i = 0
+		while(i < firstBytes.length) {
+			val n = starts.length - 1
+			if(n >= 0 && firstBytes(i) >= starts(n) && math.max(lastBytes(i), ends(n)) - starts(n) <= Int.MaxValue)
+				ends(n) = math.max(lastBytes(i), ends(n))
+			else {
+				starts += firstBytes(i)
+				ends += lastBytes(i)
+			}
+			frameSegments(i) = starts.length - 1
+			i += 1
+		}
+		(starts.toArray, ends.toArray, frameSegments)
+	}
+
+	def firstByte(fi: FileInfo) : Long = (fi.getOffset +: strips(fi).map(_._1)).min
+
+	def lastByte(fi: FileInfo) : Long = {
+		val stripEnds = strips(fi).map(s => s._1 + s._2)
+		if(fi.compression > FileInfo.COMPRESSION_NONE && stripEnds.nonEmpty) stripEnds.max
+		else ((fi.getOffset + frameBytes(fi)) +: stripEnds).max
+	}
+
+	/** @return A copy of `fi` with every offset made relative to `start`. */
+	def rebase(fi: FileInfo, start: Long) : FileInfo = {
+		val local = fi.clone.asInstanceOf[FileInfo]
+		local.offset = 0
+		local.longOffset = fi.getOffset - start
+		if(fi.stripOffsets != null) local.stripOffsets = fi.stripOffsets.map(_ - start)
+		local
+	}
+}
+
+/** Reads a `ByteBuffer` from its position to its limit as an `InputStream`. */
+class ByteBufferInputStream(buffer: ByteBuffer) extends InputStream {
+
+	override def read : Int = if(buffer.hasRemaining) buffer.get & 0xff else -1
+
+	override def read(bytes: Array[Byte], off: Int, len: Int) : Int = {
+		if(len == 0) 0
+		else if(!buffer.hasRemaining) -1
+		else {
+			val n = math.min(len, buffer.remaining)
+			buffer.get(bytes, off, n)
+			n
+		}
+	}
+
+	override def skip(n: Long) : Long = {
+		val skipped = math.max(math.min(n, buffer.remaining.toLong), 0L).toInt
+		buffer.position(buffer.position() + skipped)
+		skipped
+	}
+
+	override def available : Int = buffer.remaining
+}
@@ -18,25 +18,65 @@ class NumericImage[@specialized BitDepth: Numeric : Manifest](val width: Int, va
 
   final def get(x: Int, y: Int) : BitDepth = buffer(y * width + x)
 
-  final def set(x: Int, y: Int, value: BitDepth) : Unit = buffer(y * width + x) = value
+  final def set(x: Int, y: Int, value: BitDepth) : Unit = {
+    buffer(y * width + x) = value
+    cachedStats.invalidate
+  }
+
+  private val cachedStats = new StatsCache
+
+  /** @return The statistics of the pixels, gathered in one pass the first time they are asked for and kept until
+    * `set` changes a pixel. Callers writing through `getBuffer` should call `invalidateStats` afterwards. */
+  def stats : ImageStats = cachedStats(ImageStats.of(width, height)(pixelValue))
+
+  def invalidateStats : Unit = cachedStats.clear
 
-  def min = buffer.min
-  def max = buffer.max
+  /** @return The value of pixel `i` as a `Double`. Buffers of primitive pixels are read without `Numeric`. */
+  def pixelValue : Int => Double = (buffer: AnyRef) match {
+    case a: Array[Double] => (i: Int) => a(i)
+    case a: Array[Float] => (i: Int) => a(i)
+    case a: Array[Int] => (i: Int) => a(i)
+    case a: Array[Long] => (i: Int) => a(i)
+    case a: Array[Short] => (i: Int) => a(i)
+    case a: Array[Byte] => (i: Int) => a(i)
+    case _ => (i: Int) => ev.toDouble(buffer(i))
+  }
+
+  def min = buffer(stats.minIndex)
+  def max = buffer(stats.maxIndex)
 
   def mapCombine[ThatBitDepth: Numeric: Manifest, ResultBitDepth: Numeric: Manifest]
   (that: NumericImage[ThatBitDepth])(f: (BitDepth, ThatBitDepth) => ResultBitDepth) : NumericImage[ResultBitDepth] = {
     assert(width == that.width && height == that.height)
-    val newImg = new NumericImage[ResultBitDepth](width, height)
-    traverseGrid(width, height)((i, j) => newImg.set(i, j, f(get(i, j), that.get(i, j))))
-    newImg
+    val out = new Array[ResultBitDepth](width * height)
+    traverseGrid(width, height)((i, j) => out(j * width + i) = f(get(i, j), that.get(i, j)))
+    new NumericImage[ResultBitDepth](width, height, out)
   }
 
   def map[ResultBitDepth: Numeric: Manifest](f: BitDepth => ResultBitDepth) : NumericImage[ResultBitDepth] = mapWithIndex((_, _, e) => f(e))
 
   def mapWithIndex[ResultBitDepth: Numeric: Manifest](f: (Int, Int, BitDepth) => ResultBitDepth) : NumericImage[ResultBitDepth] = {
-    val newImg = new NumericImage[ResultBitDepth](width, height)
-    traverseGrid(width, height)((i, j) => newImg.set(i, j, f(i, j, get(i, j))))
-    newImg
+    val out = new Array[ResultBitDepth](width * height)
+    traverseGrid(width, height)((i, j) => out(j * width + i) = f(i, j, get(i, j)))
+    new NumericImage[ResultBitDepth](width, height, out)
+  }
+
+  /** mapCombine, map and mapWithIndex traversing the image in parallel row bands; f must be safe to call for
+    * different pixels at once. */
+  def parMapCombine[ThatBitDepth: Numeric: Manifest, ResultBitDepth: Numeric: Manifest]
+  (that: NumericImage[ThatBitDepth])(f: (BitDepth, ThatBitDepth) => ResultBitDepth) : NumericImage[ResultBitDepth] = {
+    assert(width == that.width && height == that.height)
+    val out = new Array[ResultBitDepth](width * height)
+    parTraverseGrid(width, height)((i, j) => out(j * width + i) = f(get(i, j), that.get(i, j)))
+    new NumericImage[ResultBitDepth](width, height, out)
+  }
+
+  def parMap[ResultBitDepth: Numeric: Manifest](f: BitDepth => ResultBitDepth) : NumericImage[ResultBitDepth] = parMapWithIndex((_, _, e) => f(e))
+
+  def parMapWithIndex[ResultBitDepth: Numeric: Manifest](f: (Int, Int, BitDepth) => ResultBitDepth) : NumericImage[ResultBitDepth] = {
+    val out = new Array[ResultBitDepth](width * height)
+    parTraverseGrid(width, height)((i, j) => out(j * width + i) = f(i, j, get(i, j)))
+    new NumericImage[ResultBitDepth](width, height, out)
   }
 
   def to2DArray[ResultBitDepth >: BitDepth: Numeric : Manifest] : Array[Array[ResultBitDepth]] = 
@@ -51,20 +91,44 @@ class NumericImage[@specialized BitDepth: Numeric : Manifest](val width: Int, va
     require(xUpper <= xLower && yUpper <= yLower)
     val subWidth = xLower - xUpper
     val subHeight = yLower - yUpper
-    val img = new NumericImage[BitDepth](subWidth, subHeight)
-    traverseGrid(xUpper, yUpper, xLower, yLower)((i, j) => img.set(i - xUpper, j - yUpper, get(i, j)))
-    img
+    val out = new Array[BitDepth](subWidth * subHeight)
+    traverseGrid(xUpper, yUpper, xLower, yLower)((i, j) => out((j - yUpper) * subWidth + i - xUpper) = get(i, j))
+    new NumericImage[BitDepth](subWidth, subHeight, out)
   }
 
-  // Normalize from min and max to 0 and 255 in ImageVisualizer
-  def normalizedPixels: Array[Double] = {
-    val doubled = buffer.view.map(ev.toDouble(_)).toArray
-    val mind = doubled.min
-    val maxd = doubled.max
-    doubled.map(v => (v - mind) * (255 / (maxd - mind)))
+  /** @return A copy of the `w` x `h` rectangle whose top left corner is at (`x`, `y`). */
+  def crop(x: Int, y: Int, w: Int, h: Int) : NumericImage[BitDepth] = {
+    require(x >= 0 && y >= 0 && w > 0 && h > 0 && x + w <= width && y + h <= height,
+      s"$w x $h region at ($x, $y) is outside the $width x $height image")
+    val out = new Array[BitDepth](w * h)
+    for(row <- 0 until h) Array.copy(buffer, (y + row) * width + x, out, row * w, w)
+    new NumericImage[BitDepth](w, h, out)
   }
 
-  def getDoubleImage : NumericImage[Double] = new NumericImage[Double](width, height, buffer.view.map(ev.toDouble(_)).toArray)
+  // Normalize from min and max to 0 and 255 in ImageVisualizer
+  def normalizedPixels: Array[Double] = expr.normalize.materialize.buffer
+
+  /** @return A lazy expression over the pixels of this image, evaluated in one pass when it is materialized. */
+  def expr : ImageExpr = ImageExpr(this)
+
+  def getDoubleImage : NumericImage[Double] = toDoubleImage.toNumericImage
+
+  /** @return A copy of the pixels as a `DoubleImage`. Buffers of primitive pixels are copied with primitive loops,
+    * and only other pixel types go through `Numeric`. */
+  def toDoubleImage : DoubleImage = {
+    val out = new Array[Double](buffer.length)
+    var i = 0
+    (buffer: AnyRef) match {
+      case a: Array[Double] => System.arraycopy(a, 0, out, 0, a.length)
+      case a: Array[Float] => while(i < a.length) { out(i) = a(i); i += 1 }
+      case a: Array[Int] => while(i < a.length) { out(i) = a(i); i += 1 }
+      case a: Array[Long] => while(i < a.length) { out(i) = a(i); i += 1 }
+      case a: Array[Short] => while(i < a.length) { out(i) = a(i); i += 1 }
+      case a: Array[Byte] => while(i < a.length) { out(i) = a(i); i += 1 }
+      case _ => while(i < buffer.length) { out(i) = ev.toDouble(buffer(i)); i += 1 }
+    }
+    new DoubleImage(width, height, out)
+  }
 
   // Normalize between 0 and 1 and return a new NumericImage object
   def normalizedImage : NumericImage[Double] = new NumericImage(width, height, normalizedPixels)
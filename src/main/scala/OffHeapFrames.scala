@@ -0,0 +1,136 @@
+package shalene
+
+import java.io.{File, RandomAccessFile}
+import java.nio.{ByteBuffer, ByteOrder}
+import java.nio.channels.FileChannel
+
+/** A stack of frames held outside the Java heap at their native bit depth, either in direct `ByteBuffer`s or in a
+	* scratch file mapped into memory, so that a stack of many gigabytes adds nothing to the heap for the garbage
+	* collector to trace. Frames are copied onto the heap as a `NumericImage[Int]` only when they are asked for, while
+	* `get` and `set` reach single pixels in place.
+	* @author James R. Thompson, D.Phil
+	* @constructor Use `OffHeapFrames.apply`, which lays the frames out in as few buffers as fit them.
+	*/
+class OffHeapFrames private (val width: Int, val height: Int, val length: Int, kind: Int, sampleBytes: Int,
+		segments: Array[ByteBuffer], framesPerSegment: Int) extends LazyFrameSeq[Int] {
+
+	import OffHeapFrames._
+
+	private val pixels = width * height
+
+	protected def frame(index: Int) : NumericImage[Int] = new NumericImage[Int](width, height, packed(index).widen)
+
+	/** @return A view of the bytes of the frame at `index`, in native byte order. */
+	private def view(index: Int) : ByteBuffer = {
+		val bytes = segments(index / framesPerSegment).duplicate
+		val start = (index % framesPerSegment) * pixels * sampleBytes
+		bytes.position(start)
+		bytes.limit(start + pixels * sampleBytes)
+		bytes.slice.order(ByteOrder.nativeOrder)
+	}
+
+	/** @return A copy on the heap of the pixels of the frame at `index`, at their native bit depth. */
+	def packed(index: Int) : PackedPixels = {
+		if(index < 0 || index >= length) throw new IndexOutOfBoundsException(index.toString)
+		val bytes = view(index)
+		kind match {
+			case BYTE => val p = new Array[Byte](pixels); bytes.get(p); BytePixels(p)
+			case SHORT => val p = new Array[Short](pixels); bytes.asShortBuffer.get(p); ShortPixels(p)
+			case FLOAT => val p = new Array[Float](pixels); bytes.asFloatBuffer.get(p); FloatPixels(p)
+			case INT => val p = new Array[Int](pixels); bytes.asIntBuffer.get(p); IntPixels(p)
+		}
+	}
+
+	/** Stores `frame` as the frame at `index`. It must be of the same kind and size as the others. */
+	def put(index: Int, frame: PackedPixels) = {
+		if(index < 0 || index >= length) throw new IndexOutOfBoundsException(index.toString)
+		require(frame.length == pixels, "Frame has " + frame.length + " pixels, not " + pixels)
+		val bytes = view(index)
+		(kind, frame) match {
+			case (BYTE, BytePixels(p)) => bytes.put(p)
+			case (SHORT, ShortPixels(p)) => bytes.asShortBuffer.put(p)
+			case (FLOAT, FloatPixels(p)) => bytes.asFloatBuffer.put(p)
+			case (INT, IntPixels(p)) => bytes.asIntBuffer.put(p)
+			case _ => throw new IllegalArgumentException("Frames of this stack can't be stored from " + frame.getClass.getSimpleName)
+		}
+	}
+
+	/** @return The pixel at (`x`, `y`) of the frame at `index`, widened as `PackedPixels` widens it. */
+	def get(index: Int, x: Int, y: Int) : Int = {
+		val (bytes, at) = locate(index, x, y)
+		kind match {
+			case BYTE => bytes.get(at) & 0xff
+			case SHORT => bytes.getShort(at) & 0xffff
+			case _ => bytes.getInt(at)
+		}
+	}
+
+	/** Sets the pixel at (`x`, `y`) of the frame at `index` to `value`, narrowed to the bit depth of the stack.
+		* Float stacks take the raw float bits, as `get` gives them. */
+	def set(index: Int, x: Int, y: Int, value: Int) : Unit = {
+		val (bytes, at) = locate(index, x, y)
+		kind match {
+			case BYTE => bytes.put(at, value.toByte)
+			case SHORT => bytes.putShort(at, value.toShort)
+			case _ => bytes.putInt(at, value)
+		}
+	}
+
+	private def locate(index: Int, x: Int, y: Int) : (ByteBuffer, Int) = {
+		if(index < 0 || index >= length) throw new IndexOutOfBoundsException(index.toString)
+		if(x < 0 || x >= width || y < 0 || y >= height) throw new IndexOutOfBoundsException("(" + x + ", " + y + ")")
+		val at = ((index % framesPerSegment) * pixels + y * width + x) * sampleBytes
+		(segments(index / framesPerSegment), at)
+	}
+
+	/** Bytes taken up by the frames, outside the heap. */
+	def bytes : Long = length.toLong * pixels * sampleBytes
+}
+
+object OffHeapFrames {
+
+	private val BYTE = 0
+	private val SHORT = 1
+	private val FLOAT = 2
+	private val INT = 3
+
+	/** Stores `count` frames of `width` x `height` pixels off the heap, taking them from `frames` one at a time, so
+		* that no more than one of them need be on the heap at once. All of them must be of the kind of the first.
+		* @param scratch The file to map the frames into, which is created or overwritten; or null to keep them in
+		* direct buffers, which count against `-XX:MaxDirectMemorySize`.
+		*/
+	def apply(width: Int, height: Int, count: Int, frames: Iterator[PackedPixels], scratch: File) : OffHeapFrames = {
+		require(count >= 1 && frames.hasNext, "OffHeapFrames must have at least 1 frame")
+		val first = frames.next
+		val (kind, sampleBytes) = first match {
+			case _: BytePixels => (BYTE, 1)
+			case _: ShortPixels => (SHORT, 2)
+			case _: FloatPixels => (FLOAT, 4)
+			case _: IntPixels => (INT, 4)
+		}
+		val frameBytes = width.toLong * height * sampleBytes
+		require(frameBytes <= Int.MaxValue, "Frames of over 2 GB can't be stored")
+		val framesPerSegment = math.min(Int.MaxValue / frameBytes, count.toLong).toInt
+		val segmentCount = (count + framesPerSegment - 1) / framesPerSegment
+		def segmentBytes(s: Int) = math.min(framesPerSegment, count - s * framesPerSegment) * frameBytes
+		val buffers =
+			if(scratch == null) Array.tabulate(segmentCount)(s => ByteBuffer.allocateDirect(segmentBytes(s).toInt))
+			else {
+				val file = new RandomAccessFile(scratch, "rw")
+				try {
+					file.setLength(count * frameBytes)
+					Array.tabulate[ByteBuffer](segmentCount)(s =>
+						file.getChannel.map(FileChannel.MapMode.READ_WRITE, s * framesPerSegment * frameBytes, segmentBytes(s)))
+				} finally file.close
+			}
+		val segments = buffers.map(_.order(ByteOrder.nativeOrder))
+		val out = new OffHeapFrames(width, height, count, kind, sampleBytes, segments, framesPerSegment)
+		out.put(0, first)
+		var i = 1
+		while(i < count && frames.hasNext) {
+			out.put(i, frames.next)
+			i += 1
+		}
+		out
+	}
+}
@@ -0,0 +1,74 @@
+package shalene
+
+/** The pixels of one frame, kept at the bit depth they were stored with. 8- and 16-bit data are unsigned, and
+	* are only widened to `Int` when the frame is asked for.
+	*/
+sealed abstract class PackedPixels {
+	def length : Int
+	/** Bytes taken up by the pixels. */
+	def bytes : Long
+	/** @return The pixel at `index`, widened as `widen` does. */
+	def apply(index: Int) : Int
+	/** @return A new `Int` copy of the pixels. */
+	def widen : Array[Int]
+}
+
+case class BytePixels(pixels: Array[Byte]) extends PackedPixels {
+	def length = pixels.length
+	def bytes = pixels.length.toLong
+	def apply(index: Int) = pixels(index) & 0xff
+	def widen = {
+		val out = new Array[Int](pixels.length)
+		var i = 0
+		while(i < out.length) { out(i) = pixels(i) & 0xff; i += 1 }
+		out
+	}
+}
+
+case class ShortPixels(pixels: Array[Short]) extends PackedPixels {
+	def length = pixels.length
+	def bytes = pixels.length * 2L
+	def apply(index: Int) = pixels(index) & 0xffff
+	def widen = {
+		val out = new Array[Int](pixels.length)
+		var i = 0
+		while(i < out.length) { out(i) = pixels(i) & 0xffff; i += 1 }
+		out
+	}
+}
+
+/** 32-bit, 24-bit and float data, which `ImageReader` hands back as floats. These widen to their raw float bits. */
+case class FloatPixels(pixels: Array[Float]) extends PackedPixels {
+	def length = pixels.length
+	def bytes = pixels.length * 4L
+	def apply(index: Int) = java.lang.Float.floatToIntBits(pixels(index))
+	def widen = {
+		val out = new Array[Int](pixels.length)
+		var i = 0
+		while(i < out.length) { out(i) = java.lang.Float.floatToIntBits(pixels(i)); i += 1 }
+		out
+	}
+}
+
+/** Packed RGB data, which is already one `Int` per pixel. */
+case class IntPixels(pixels: Array[Int]) extends PackedPixels {
+	def length = pixels.length
+	def bytes = pixels.length * 4L
+	def apply(index: Int) = pixels(index)
+	def widen = pixels.clone
+}
+
+/** A stack of frames held in memory at their native bit depth, so that e.g. a 16-bit stack takes 2 bytes per pixel
+	* rather than 4. Each frame is widened to a `NumericImage[Int]` when it is asked for, and not kept.
+	* @author James R. Thompson, D.Phil
+	* @constructor The frame size, and the pixels of each frame.
+	*/
+class PackedFrames(val width: Int, val height: Int, val frames: IndexedSeq[PackedPixels]) extends LazyFrameSeq[Int] {
+
+	def length = frames.length
+
+	protected def frame(index: Int) : NumericImage[Int] = new NumericImage[Int](width, height, frames(index).widen)
+
+	/** Bytes taken up by the pixels of every frame. */
+	def bytes : Long = frames.map(_.bytes).sum
+}
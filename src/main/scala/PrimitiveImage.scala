@@ -0,0 +1,199 @@
+package shalene
+
+/** 2D images over one primitive pixel type each, for per-frame processing on the hot path. Unlike `NumericImage`
+	* they need no `Numeric` or `Manifest`, and `map`, `combine` and `fold` take functions of the primitive type,
+	* which Scala specializes, so no pixel is boxed and nothing is allocated but the output buffer. `ShortImage` holds
+	* unsigned 16-bit pixels and hands them out as `Int`; `FloatImage` combines and folds in `Double`, as `Function2`
+	* is not specialized for `Float`.
+	* @author James R. Thompson, D.Phil
+	*/
+final class DoubleImage(val width: Int, val height: Int, val buffer: Array[Double]) {
+	require(width > 0 && height > 0, "dimensions must be > 0 px")
+	require(buffer.length == width * height, "buffer must hold width x height pixels")
+
+	def this(width: Int, height: Int) = this(width, height, new Array[Double](width * height))
+
+	def get(x: Int, y: Int) : Double = buffer(y * width + x)
+
+	def set(x: Int, y: Int, value: Double) : Unit = {
+		buffer(y * width + x) = value
+		cachedStats.invalidate
+	}
+
+	private val cachedStats = new StatsCache
+
+	/** @return The statistics of the pixels, gathered in one pass the first time they are asked for and kept until
+		* `set` changes a pixel. Callers writing to `buffer` directly should call `invalidateStats` afterwards. */
+	def stats : ImageStats = cachedStats(ImageStats.of(width, height)(buffer(_)))
+
+	def invalidateStats : Unit = cachedStats.clear
+
+	def map(f: Double => Double) : DoubleImage = {
+		val out = new Array[Double](buffer.length)
+		var i = 0
+		while(i < out.length) { out(i) = f(buffer(i)); i += 1 }
+		new DoubleImage(width, height, out)
+	}
+
+	def combine(that: DoubleImage)(f: (Double, Double) => Double) : DoubleImage = {
+		require(width == that.width && height == that.height, "images must be the same size")
+		val out = new Array[Double](buffer.length)
+		var i = 0
+		while(i < out.length) { out(i) = f(buffer(i), that.buffer(i)); i += 1 }
+		new DoubleImage(width, height, out)
+	}
+
+	/** Fold, in row scanning order. */
+	def fold(init: Double)(f: (Double, Double) => Double) : Double = {
+		var acc = init
+		var i = 0
+		while(i < buffer.length) { acc = f(acc, buffer(i)); i += 1 }
+		acc
+	}
+
+	def min : Double = stats.min
+	def max : Double = stats.max
+
+	/** @return The pixels scaled from their min and max to 0 and 255, as `NumericImage.normalizedPixels` scales them. */
+	def normalized : DoubleImage = ImageExpr(this).normalize.materialize
+
+	/** @return A `NumericImage` sharing this image's buffer. */
+	def toNumericImage : NumericImage[Double] = new NumericImage[Double](width, height, buffer)
+}
+
+final class FloatImage(val width: Int, val height: Int, val buffer: Array[Float]) {
+	require(width > 0 && height > 0, "dimensions must be > 0 px")
+	require(buffer.length == width * height, "buffer must hold width x height pixels")
+
+	def this(width: Int, height: Int) = this(width, height, new Array[Float](width * height))
+
+	def get(x: Int, y: Int) : Float = buffer(y * width + x)
+
+	def set(x: Int, y: Int, value: Float) : Unit = buffer(y * width + x) = value
+
+	def map(f: Float => Float) : FloatImage = {
+		val out = new Array[Float](buffer.length)
+		var i = 0
+		while(i < out.length) { out(i) = f(buffer(i)); i += 1 }
+		new FloatImage(width, height, out)
+	}
+
+	def combine(that: FloatImage)(f: (Double, Double) => Double) : FloatImage = {
+		require(width == that.width && height == that.height, "images must be the same size")
+		val out = new Array[Float](buffer.length)
+		var i = 0
+		while(i < out.length) { out(i) = f(buffer(i), that.buffer(i)).toFloat; i += 1 }
+		new FloatImage(width, height, out)
+	}
+
+	/** Fold, in row scanning order. */
+	def fold(init: Double)(f: (Double, Double) => Double) : Double = {
+		var acc = init
+		var i = 0
+		while(i < buffer.length) { acc = f(acc, buffer(i)); i += 1 }
+		acc
+	}
+
+	def min : Float = fold(Double.PositiveInfinity)(math.min).toFloat
+	def max : Float = fold(Double.NegativeInfinity)(math.max).toFloat
+
+	def toDoubleImage : DoubleImage = {
+		val out = new Array[Double](buffer.length)
+		var i = 0
+		while(i < out.length) { out(i) = buffer(i); i += 1 }
+		new DoubleImage(width, height, out)
+	}
+}
+
+final class IntImage(val width: Int, val height: Int, val buffer: Array[Int]) {
+	require(width > 0 && height > 0, "dimensions must be > 0 px")
+	require(buffer.length == width * height, "buffer must hold width x height pixels")
+
+	def this(width: Int, height: Int) = this(width, height, new Array[Int](width * height))
+
+	def get(x: Int, y: Int) : Int = buffer(y * width + x)
+
+	def set(x: Int, y: Int, value: Int) : Unit = buffer(y * width + x) = value
+
+	def map(f: Int => Int) : IntImage = {
+		val out = new Array[Int](buffer.length)
+		var i = 0
+		while(i < out.length) { out(i) = f(buffer(i)); i += 1 }
+		new IntImage(width, height, out)
+	}
+
+	def combine(that: IntImage)(f: (Int, Int) => Int) : IntImage = {
+		require(width == that.width && height == that.height, "images must be the same size")
+		val out = new Array[Int](buffer.length)
+		var i = 0
+		while(i < out.length) { out(i) = f(buffer(i), that.buffer(i)); i += 1 }
+		new IntImage(width, height, out)
+	}
+
+	/** Fold, in row scanning order. */
+	def fold(init: Long)(f: (Long, Int) => Long) : Long = {
+		var acc = init
+		var i = 0
+		while(i < buffer.length) { acc = f(acc, buffer(i)); i += 1 }
+		acc
+	}
+
+	def min : Int = { var m = Int.MaxValue; var i = 0; while(i < buffer.length) { if(buffer(i) < m) m = buffer(i); i += 1 }; m }
+	def max : Int = { var m = Int.MinValue; var i = 0; while(i < buffer.length) { if(buffer(i) > m) m = buffer(i); i += 1 }; m }
+
+	def toDoubleImage : DoubleImage = {
+		val out = new Array[Double](buffer.length)
+		var i = 0
+		while(i < out.length) { out(i) = buffer(i); i += 1 }
+		new DoubleImage(width, height, out)
+	}
+
+	/** @return A `NumericImage` sharing this image's buffer. */
+	def toNumericImage : NumericImage[Int] = new NumericImage[Int](width, height, buffer)
+}
+
+final class ShortImage(val width: Int, val height: Int, val buffer: Array[Short]) {
+	require(width > 0 && height > 0, "dimensions must be > 0 px")
+	require(buffer.length == width * height, "buffer must hold width x height pixels")
+
+	def this(width: Int, height: Int) = this(width, height, new Array[Short](width * height))
+
+	/** @return The unsigned pixel at (`x`, `y`). */
+	def get(x: Int, y: Int) : Int = buffer(y * width + x) & 0xffff
+
+	def set(x: Int, y: Int, value: Int) : Unit = buffer(y * width + x) = value.toShort
+
+	/** Maps the unsigned pixels, storing the low 16 bits of each result. */
+	def map(f: Int => Int) : ShortImage = {
+		val out = new Array[Short](buffer.length)
+		var i = 0
+		while(i < out.length) { out(i) = f(buffer(i) & 0xffff).toShort; i += 1 }
+		new ShortImage(width, height, out)
+	}
+
+	def combine(that: ShortImage)(f: (Int, Int) => Int) : ShortImage = {
+		require(width == that.width && height == that.height, "images must be the same size")
+		val out = new Array[Short](buffer.length)
+		var i = 0
+		while(i < out.length) { out(i) = f(buffer(i) & 0xffff, that.buffer(i) & 0xffff).toShort; i += 1 }
+		new ShortImage(width, height, out)
+	}
+
+	/** Fold over the unsigned pixels, in row scanning order. */
+	def fold(init: Long)(f: (Long, Int) => Long) : Long = {
+		var acc = init
+		var i = 0
+		while(i < buffer.length) { acc = f(acc, buffer(i) & 0xffff); i += 1 }
+		acc
+	}
+
+	def min : Int = { var m = 0xffff; var i = 0; while(i < buffer.length) { m = math.min(m, buffer(i) & 0xffff); i += 1 }; m }
+	def max : Int = { var m = 0; var i = 0; while(i < buffer.length) { m = math.max(m, buffer(i) & 0xffff); i += 1 }; m }
+
+	def toDoubleImage : DoubleImage = {
+		val out = new Array[Double](buffer.length)
+		var i = 0
+		while(i < out.length) { out(i) = buffer(i) & 0xffff; i += 1 }
+		new DoubleImage(width, height, out)
+	}
+}
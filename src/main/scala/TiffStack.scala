@@ -25,9 +25,67 @@ class TiffStack[T : Numeric : Manifest](val stack: IndexedSeq[NumericImage[T]])
 
 	def getNumFrames : Int = stack.length
 
+	/** @return The part of frame `index` inside the rectangle (`x`, `y`, `w`, `h`), e.g. the box around one vesicle.
+		* Stacks read from disk lazily only read the part of the file that holds the rectangle. */
+	def getFrameRegion(index: Int, x: Int, y: Int, w: Int, h: Int) : NumericImage[T] = stack match {
+		case frames: LazyFrameSeq[T] => frames.region(index, x, y, w, h)
+		case _ => getFrame(index).crop(x, y, w, h)
+	}
+
 	def getJFXFrame(index: Int) = stack(index).getJFXImg
 
 	def dropFrames(n: Int) = new TiffStack[T](this.stack.drop(n))
 
+	/** @return This stack behind a `FrameCache`, which keeps the frames asked for last, up to `budgetBytes` of them. */
+	def cached(budgetBytes: Long = FrameCache.defaultBudget) = new TiffStack[T](new FrameCache(this.stack, budgetBytes))
+
+	/** Releases what the frames are read from, e.g. the file a mapped stack keeps open. Stacks made from this one
+		* with `dropFrames` or `cached` share its frames, so they can't be read afterwards either. */
+	def close : Unit = stack match {
+		case frames: LazyFrameSeq[T] => frames.close
+		case _ =>
+	}
+
 	override def toString : String = width.toString + " x " + height.toString + ", number of frames = " + getNumFrames.toString
 }
+
+/** An `IndexedSeq` of frames that are only produced, e.g. decoded from disk, when they are asked for.
+	* Slicing (and so `drop`, `take` and `TiffStack.dropFrames`) stays lazy rather than forcing every frame.
+	*/
+abstract class LazyFrameSeq[T] extends IndexedSeq[NumericImage[T]] {
+
+	/** @return The frame at `index`, which has already been bounds checked. */
+	protected def frame(index: Int) : NumericImage[T]
+
+	def apply(index: Int) : NumericImage[T] = {
+		if(index < 0 || index >= length) throw new IndexOutOfBoundsException(index.toString)
+		frame(index)
+	}
+
+	/** @return The part of the frame at `index` inside the rectangle (`x`, `y`, `w`, `h`). Subclasses that can
+		* produce it without decoding the whole frame should override this. */
+	def region(index: Int, x: Int, y: Int, w: Int, h: Int) : NumericImage[T] = apply(index).crop(x, y, w, h)
+
+	override def slice(from: Int, until: Int) : IndexedSeq[NumericImage[T]] = {
+		val lo = math.max(from, 0)
+		val hi = math.max(math.min(until, length), lo)
+		val outer = this
+		new LazyFrameSeq[T] {
+			def length = hi - lo
+			protected def frame(index: Int) = outer(lo + index)
+			override def region(index: Int, x: Int, y: Int, w: Int, h: Int) = {
+				if(index < 0 || index >= length) throw new IndexOutOfBoundsException(index.toString)
+				outer.region(lo + index, x, y, w, h)
+			}
+			override def close = outer.close
+		}
+	}
+
+	/** Releases what the frames are read from, e.g. an open file, after which they can't be read. Slices share the
+		* frames they were cut from, so closing one closes those. */
+	def close : Unit = ()
+
+	override def drop(n: Int) : IndexedSeq[NumericImage[T]] = slice(n, length)
+
+	override def take(n: Int) : IndexedSeq[NumericImage[T]] = slice(0, n)
+}